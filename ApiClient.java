@@ -1,6 +1,7 @@
 // src/main/java/com/example/ApiClient.java
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.net.CookieHandler;
+import java.io.InputStream;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
 import java.net.URI;
@@ -9,19 +10,65 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.regex.Pattern;
+import org.json.JSONObject;
 
+/**
+ * Client for the SAP API_SALES_ORDER_SRV OData service.
+ *
+ * Every operation has a non-blocking variant (suffix {@code Async}) built on
+ * {@link HttpClient#sendAsync}; the blocking methods simply wait for it.
+ *
+ * An instance is one SAP session: its credentials, session cookies, CSRF token and response
+ * cache. {@link #forUser} opens further sessions that share this one's HTTP client (and so its
+ * connections), bulkheads, circuit breaker and retry budget.
+ */
 public class ApiClient {
 
     private final HttpClient httpClient;
     private final String baseUri;
     private final String authHeaderValue;
-    private String csrfToken;
-    private String lastETag;
+    private final String username;
+    // Cookies are kept per session rather than in the shared HttpClient; see newRequest() and send().
+    private final CookieManager cookieManager = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+    // The CSRF token is shared by all requests of this session; it is only replaced under csrfLock.
+    private final Object csrfLock = new Object();
+    private final long csrfTokenLifetimeMillis;
+    private CompletableFuture<String> csrfToken;
+    private long csrfTokenExpiresAt;
+    private final ODataResponseCache responseCache;
+    private final SingleFlight<ODataResponseCache.Entry> upstreamGets = new SingleFlight<>();
+    // Bulkheads: reads and writes have separate caps on calls waiting on SAP, so a flood
+    // of slow reads cannot stop users from saving, and the other way round.
+    private final Semaphore outstandingReads;
+    private final Semaphore outstandingWrites;
+    private final Duration requestTimeout;
+    private final Map<String, Duration> operationTimeouts = new ConcurrentHashMap<>();
+    private final CircuitBreaker circuitBreaker;
+    private final RetryBudget retryBudget;
+    private final int maxRetries;
+    private final long retryBaseDelayMillis;
+    // Sent to the browser with cached data served while SAP is unreachable (RFC 7234 warn-code 110).
+    static final String STALE_WARNING = "110 - \"Response is Stale\"";
     private static final Pattern SALES_ORDER_HEADER_URL_PATTERN = Pattern.compile(".*A_SalesOrder\\('\\d+'\\)$");
 
     public ApiClient(String baseUri, String username, String password) {
@@ -31,27 +78,86 @@ public class ApiClient {
 
         this.baseUri = baseUri;
         
-        CookieManager cookieManager = new CookieManager();
-        cookieManager.setCookiePolicy(CookiePolicy.ACCEPT_ALL);
-
+        // A handful of threads is enough: they only run completion callbacks, never wait on SAP.
+        int upstreamThreads = Integer.getInteger("portal.upstream.threads", 4);
+        // HTTP/2 is used where the Gateway offers it (ALPN on https, h2c upgrade on http); otherwise
+        // the client falls back to HTTP/1.1 with pooled keep-alive connections.
         this.httpClient = HttpClient.newBuilder()
-                .version(HttpClient.Version.HTTP_1_1)
+                .version(HttpClient.Version.valueOf(System.getProperty("portal.upstream.httpVersion", "HTTP_2")))
                 .connectTimeout(Duration.ofSeconds(10))
-                .cookieHandler(cookieManager)
+                .executor(Executors.newFixedThreadPool(upstreamThreads, runnable -> {
+                    Thread thread = new Thread(runnable, "sap-upstream");
+                    thread.setDaemon(true);
+                    return thread;
+                }))
                 .build();
         
         this.authHeaderValue = createAuthHeader(username, password);
+        this.username = username;
+        this.csrfToken = null;
+        // SAP sessions time out after ~30 minutes by default; renew the token before that.
+        this.csrfTokenLifetimeMillis = Duration.ofMinutes(Long.getLong("portal.csrf.lifetimeMinutes", 25L)).toMillis();
+        this.responseCache = new ODataResponseCache(
+                Integer.getInteger("portal.cache.maxEntries", 500),
+                Duration.ofSeconds(Long.getLong("portal.cache.ttlSeconds", 30L)).toMillis());
+        this.outstandingReads = new Semaphore(Integer.getInteger("portal.upstream.maxOutstandingReads", 192));
+        this.outstandingWrites = new Semaphore(Integer.getInteger("portal.upstream.maxOutstandingWrites", 64));
+        this.requestTimeout = Duration.ofSeconds(Long.getLong("portal.upstream.timeoutSeconds", 30L));
+        this.circuitBreaker = new CircuitBreaker(
+                Integer.getInteger("portal.circuit.windowSize", 20),
+                Integer.getInteger("portal.circuit.minimumCalls", 10),
+                Double.parseDouble(System.getProperty("portal.circuit.failureRate", "0.5")),
+                Duration.ofSeconds(Long.getLong("portal.circuit.openSeconds", 30L)).toMillis());
+        // At most one retry per ten reads, so retries cannot multiply the load during an outage.
+        this.retryBudget = new RetryBudget(Double.parseDouble(System.getProperty("portal.upstream.retryRatio", "0.1")), 10);
+        this.maxRetries = Integer.getInteger("portal.upstream.retries", 2);
+        this.retryBaseDelayMillis = Long.getLong("portal.upstream.retryBaseMillis", 100L);
+    }
+    
+    private ApiClient(ApiClient shared, String username, String password, int cacheEntries) {
+        Objects.requireNonNull(username, "Username cannot be null");
+        Objects.requireNonNull(password, "Password cannot be null");
+
+        this.baseUri = shared.baseUri;
+        this.httpClient = shared.httpClient;
+        this.authHeaderValue = createAuthHeader(username, password);
+        this.username = username;
         this.csrfToken = null;
-        this.lastETag = null;
+        this.csrfTokenLifetimeMillis = shared.csrfTokenLifetimeMillis;
+        this.responseCache = new ODataResponseCache(cacheEntries, shared.responseCache.getTtlMillis());
+        this.outstandingReads = shared.outstandingReads;
+        this.outstandingWrites = shared.outstandingWrites;
+        this.requestTimeout = shared.requestTimeout;
+        this.circuitBreaker = shared.circuitBreaker;
+        this.retryBudget = shared.retryBudget;
+        this.maxRetries = shared.maxRetries;
+        this.retryBaseDelayMillis = shared.retryBaseDelayMillis;
+    }
+
+    /**
+     * Opens a separate SAP session for another user. It has its own cookies, CSRF token and a
+     * response cache of {@code cacheEntries}, but sends through this client's connections and
+     * counts against the same bulkheads and circuit breaker, so SAP sees one well-behaved caller.
+     */
+    public ApiClient forUser(String username, String password, int cacheEntries) {
+        return new ApiClient(this, username, password, cacheEntries);
     }
     
     private String createAuthHeader(String username, String password) {
         String auth = username + ":" + password;
-        return "Basic " + Base64.getEncoder().encodeToString(auth.getBytes());
+        return "Basic " + Base64.getEncoder().encodeToString(auth.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public ODataResponse getSalesOrders(int top) throws IOException, InterruptedException {
+        return await(getSalesOrdersAsync(top));
     }
 
-    public String getSalesOrders(int top) throws IOException, InterruptedException {
-        String filterQuery = "CreatedByUser eq 'HZIDANI'";
+    public CompletableFuture<ODataResponse> getSalesOrdersAsync(int top) {
+        return executeGetRequest(salesOrdersUri(top));
+    }
+
+    private String salesOrdersUri(int top) {
+        String filterQuery = "CreatedByUser eq '" + username.replace("'", "''") + "'";
         String orderbyQuery = "SalesOrder desc"; // Separate the order-by value
         String encodedFilter = URLEncoder.encode(filterQuery, StandardCharsets.UTF_8);
         String encodedOrderby = URLEncoder.encode(orderbyQuery, StandardCharsets.UTF_8);
@@ -61,105 +167,323 @@ public class ApiClient {
         		encodedFilter,
         		encodedOrderby,
         		top);
-        System.out.println(fullUri);
-        return executeGetRequest(fullUri);
+        return fullUri;
+    }
+
+    /**
+     * Reads one page of A_SalesOrder headers. {@code odataQuery} is the already validated
+     * query string built by {@link SalesOrderPageQuery#toODataQuery()}.
+     */
+    public CompletableFuture<ODataResponse> getSalesOrderPageAsync(String odataQuery) {
+        return executeGetRequest(this.baseUri + "A_SalesOrder?" + odataQuery);
+    }
+
+    /**
+     * Reads one page of A_SalesOrder headers for the order index. Unlike the other reads this
+     * bypasses the response cache: every delta query has a new timestamp and would only push
+     * the browser's entries out.
+     */
+    public CompletableFuture<String> getSalesOrderFeedAsync(String odataQuery) {
+        String fullUri = this.baseUri + "A_SalesOrder?" + odataQuery;
+        HttpRequest request = newRequest("sync", fullUri)
+                .header("Accept", "application/xml")
+                .GET()
+                .build();
+        AsyncLogger.debug("Executing sync GET request to: " + fullUri);
+        return sendIdempotent("sync", request, 0).thenApply(response -> {
+            handleResponseStatusCode(response.statusCode());
+            return response.body();
+        });
+    }
+
+    public ODataResponse getSalesOrderDetail(String orderId) throws IOException, InterruptedException {
+        return await(getSalesOrderDetailAsync(orderId));
     }
 
-    public String getSalesOrderDetail(String orderId) throws IOException, InterruptedException {
+    public CompletableFuture<ODataResponse> getSalesOrderDetailAsync(String orderId) {
         Objects.requireNonNull(orderId, "Sales Order ID cannot be null");
         String fullUri = String.format("%sA_SalesOrder('%s')", this.baseUri, orderId);
         return executeGetRequest(fullUri);
     }
 
-    public String getSalesOrderItems(String orderId) throws IOException, InterruptedException {
+    /**
+     * Streaming variants: the body is handed over unread so it can be piped to the browser
+     * with constant memory. They bypass the response cache and request coalescing.
+     */
+    public CompletableFuture<ODataStream> streamSalesOrdersAsync(int top) {
+        return executeStreamingGetRequest(salesOrdersUri(top));
+    }
+
+    public CompletableFuture<ODataStream> streamSalesOrderDetailAsync(String orderId) {
+        Objects.requireNonNull(orderId, "Sales Order ID cannot be null");
+        return executeStreamingGetRequest(String.format("%sA_SalesOrder('%s')", this.baseUri, orderId));
+    }
+
+    public CompletableFuture<ODataStream> streamSalesOrderItemsAsync(String orderId) {
+        Objects.requireNonNull(orderId, "Sales Order ID cannot be null");
+        return executeStreamingGetRequest(String.format("%sA_SalesOrder('%s')/to_Item", this.baseUri, orderId));
+    }
+
+    public ODataResponse getSalesOrderItems(String orderId) throws IOException, InterruptedException {
+        return await(getSalesOrderItemsAsync(orderId));
+    }
+
+    public CompletableFuture<ODataResponse> getSalesOrderItemsAsync(String orderId) {
         Objects.requireNonNull(orderId, "Sales Order ID cannot be null");
         String fullUri = String.format("%sA_SalesOrder('%s')/to_Item", this.baseUri, orderId);
         return executeGetRequest(fullUri);
     }
 
-    private void fetchCsrfToken() throws IOException, InterruptedException {
-        if (this.csrfToken != null) return;
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(this.baseUri))
-                .header("Authorization", this.authHeaderValue)
+    public List<ODataBatch.Part> getSalesOrderWithItems(String orderId) throws IOException, InterruptedException {
+        return await(getSalesOrderWithItemsAsync(orderId));
+    }
+
+    /**
+     * Reads the order header and its items in a single $batch round trip.
+     * Returns two parts: the header (with its ETag) and the to_Item feed (with a hash of its body as "etag").
+     * If both are already cached and fresh, SAP is not called at all.
+     */
+    public CompletableFuture<List<ODataBatch.Part>> getSalesOrderWithItemsAsync(String orderId) {
+        Objects.requireNonNull(orderId, "Sales Order ID cannot be null");
+        String headerPath = String.format("A_SalesOrder('%s')", orderId);
+        String itemsPath = headerPath + "/to_Item";
+        String headerUri = this.baseUri + headerPath;
+        String itemsUri = this.baseUri + itemsPath;
+
+        ODataResponseCache.Entry cachedHeader = responseCache.get(headerUri);
+        ODataResponseCache.Entry cachedItems = responseCache.get(itemsUri);
+        boolean bothCached = cachedHeader != null && cachedItems != null;
+        if (bothCached && cachedHeader.isFresh() && cachedItems.isFresh()) {
+            responseCache.recordHit();
+            responseCache.recordHit();
+            return CompletableFuture.completedFuture(cachedParts(cachedHeader, cachedItems, false));
+        }
+        if (bothCached && !circuitBreaker.isCallPermitted()) {
+            // SAP is known to be down: show the last known state instead of an error.
+            Metrics.increment(Metrics.STALE_RESPONSES, "");
+            return CompletableFuture.completedFuture(cachedParts(cachedHeader, cachedItems, true));
+        }
+        responseCache.recordMiss();
+        responseCache.recordMiss();
+
+        long generation = responseCache.getGeneration();
+        CompletableFuture<List<ODataBatch.Part>> fresh = executeBatchAsync(new ODataBatch().get(headerPath).get(itemsPath)).thenApply(parts -> {
+            if (parts.size() != 2) {
+                throw new RuntimeException("FAILURE: Unexpected $batch response with " + parts.size() + " parts.");
+            }
+            for (ODataBatch.Part part : parts) {
+                handleResponseStatusCode(part.getStatusCode());
+            }
+            ODataBatch.Part header = parts.get(0);
+            responseCache.put(headerUri, header.getBody(), header.getHeader("etag"), generation);
+            ODataResponseCache.Entry items = responseCache.put(itemsUri, parts.get(1).getBody(), parts.get(1).getHeader("etag"), generation);
+            return List.of(header, itemsPart(items));
+        });
+        if (!bothCached) {
+            return fresh;
+        }
+        return fresh.exceptionallyCompose(error -> {
+            if (!isUpstreamFailure(error)) {
+                return CompletableFuture.failedFuture(error);
+            }
+            Metrics.increment(Metrics.STALE_RESPONSES, "");
+            return CompletableFuture.completedFuture(cachedParts(cachedHeader, cachedItems, true));
+        });
+    }
+
+    /** Header and items parts built from the cache; stale parts carry a "warning" header. */
+    private static List<ODataBatch.Part> cachedParts(ODataResponseCache.Entry header, ODataResponseCache.Entry items, boolean stale) {
+        Map<String, String> headerHeaders = new HashMap<>();
+        if (header.getETag() != null) {
+            headerHeaders.put("etag", header.getETag());
+        }
+        if (stale) {
+            headerHeaders.put("warning", STALE_WARNING);
+        }
+        return List.of(
+                new ODataBatch.Part(200, headerHeaders, header.getBody()),
+                itemsPart(items));
+    }
+
+    /** The items feed has no ETag from SAP; its "etag" is the content tag the browser can revalidate with. */
+    private static ODataBatch.Part itemsPart(ODataResponseCache.Entry items) {
+        return new ODataBatch.Part(200, Map.of("etag", items.getContentTag()), items.getBody());
+    }
+
+    public List<ODataBatch.Part> executeBatch(ODataBatch batch) throws IOException, InterruptedException {
+        return await(executeBatchAsync(batch));
+    }
+
+    /**
+     * Sends a $batch request and returns the individual responses in request order.
+     * The outer request only fails for transport or batch-level errors; callers must
+     * check the status code of each part themselves.
+     */
+    public CompletableFuture<List<ODataBatch.Part>> executeBatchAsync(ODataBatch batch) {
+        if (batch.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        // $batch is always a POST, so it needs a CSRF token.
+        String fullUri = this.baseUri + "$batch";
+        String requestBody = batch.toRequestBody();
+        // A batch of reads only uses the read bulkhead and the (shorter) read timeout.
+        String operation = batch.isReadOnly() ? "batch_read" : "batch";
+
+        AsyncLogger.debug("Executing $batch request to: " + fullUri);
+        return sendWithCsrfToken(operation, token -> newRequest(operation, fullUri)
+                .header("Content-Type", batch.getContentType())
+                .header("X-CSRF-Token", token)
+                .POST(BodyPublishers.ofString(requestBody))
+                .build())
+                .thenApply(response -> {
+                    // SAP answers a valid batch with 202 Accepted, even if single parts failed.
+                    handleResponseStatusCode(response.statusCode());
+                    String contentType = response.headers().firstValue("content-type").orElse("");
+                    return ODataBatch.parseResponse(contentType, response.body());
+                });
+    }
+
+    /** Returns a valid CSRF token, fetching a new one if there is none or it is about to expire. */
+    private CompletableFuture<String> currentCsrfToken() {
+        synchronized (csrfLock) {
+            boolean usable = this.csrfToken != null
+                    && !this.csrfToken.isCompletedExceptionally()
+                    && System.currentTimeMillis() < this.csrfTokenExpiresAt;
+            if (!usable) {
+                fetchCsrfToken();
+            }
+            return this.csrfToken;
+        }
+    }
+
+    /** Replaces a token that SAP rejected, unless another request already did so. */
+    private CompletableFuture<String> renewCsrfToken(String rejectedToken) {
+        synchronized (csrfLock) {
+            if (rejectedToken.equals(this.csrfToken.getNow(null))) {
+                fetchCsrfToken();
+            }
+            return this.csrfToken;
+        }
+    }
+
+    /**
+     * Sends a modifying request with the current CSRF token. If SAP rejects the token
+     * (403 with "X-CSRF-Token: Required"), a new token is fetched and the request is sent once more.
+     */
+    private CompletableFuture<HttpResponse<String>> sendWithCsrfToken(String operation, Function<String, HttpRequest> requestFactory) {
+        return currentCsrfToken().thenCompose(token -> send(operation, requestFactory.apply(token)).thenCompose(response -> {
+            if (response.statusCode() == 403
+                    && "required".equalsIgnoreCase(response.headers().firstValue("x-csrf-token").orElse(""))) {
+                AsyncLogger.info("CSRF token rejected, fetching a new one and retrying...");
+                return renewCsrfToken(token).thenCompose(freshToken -> send(operation, requestFactory.apply(freshToken)));
+            }
+            return CompletableFuture.completedFuture(response);
+        }));
+    }
+
+    /** Must be called with csrfLock held; concurrent writers all wait on the same fetch. */
+    private void fetchCsrfToken() {
+        HttpRequest request = newRequest("csrf_fetch", this.baseUri)
                 .header("X-CSRF-Token", "Fetch")
                 .GET()
                 .build();
-        System.out.println("Fetching CSRF token...");
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-        this.csrfToken = response.headers().firstValue("x-csrf-token").orElse(null);
-        if (this.csrfToken == null) {
-            throw new RuntimeException("Could not fetch CSRF token.");
-        }
-        System.out.println("Successfully fetched CSRF token.");
+        AsyncLogger.debug("Fetching CSRF token...");
+        this.csrfTokenExpiresAt = System.currentTimeMillis() + this.csrfTokenLifetimeMillis;
+        this.csrfToken = send("csrf_fetch", request).thenApply(response -> {
+            String token = response.headers().firstValue("x-csrf-token").orElse(null);
+            if (token == null) {
+                throw new RuntimeException("Could not fetch CSRF token.");
+            }
+            AsyncLogger.debug("Successfully fetched CSRF token.");
+            return token;
+        });
     }
 
    
     
     public String createSalesOrder(String jsonPayload) throws IOException, InterruptedException {
-        fetchCsrfToken(); // CSRF token is required for creation
+        return await(createSalesOrderAsync(jsonPayload));
+    }
 
+    public CompletableFuture<String> createSalesOrderAsync(String jsonPayload) {
         String fullUri = this.baseUri + "A_SalesOrder";
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(fullUri))
-                .header("Authorization", this.authHeaderValue)
+        AsyncLogger.debug("Executing POST request to: " + fullUri);
+        // CSRF token is required for creation
+        return sendWithCsrfToken("create", token -> newRequest("create", fullUri)
                 .header("Content-Type", "application/json")
                 .header("Accept", "application/json")
-                .header("X-CSRF-Token", this.csrfToken)
+                .header("X-CSRF-Token", token)
                 .POST(BodyPublishers.ofString(jsonPayload))
-                .build();
-
-        System.out.println("Executing POST request to: " + fullUri);
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-        
-        // A successful creation typically returns 201 Created
-        handleResponseStatusCode(response.statusCode());
-        return response.body();
+                .build())
+                .thenApply(response -> {
+                    // A successful creation typically returns 201 Created
+                    handleResponseStatusCode(response.statusCode());
+                    invalidateSalesOrderLists();
+                    return response.body();
+                });
     }
     
     
+    /**
+     * Creates several orders in one $batch request, each in its own change set, so one
+     * rejected order does not roll back the others. Returns one part per order, in order.
+     */
+    public CompletableFuture<List<ODataBatch.Part>> createSalesOrdersAsync(List<String> jsonPayloads) {
+        ODataBatch batch = new ODataBatch();
+        for (String payload : jsonPayloads) {
+            batch.beginChangeSet().post("A_SalesOrder", payload);
+        }
+        return executeBatchAsync(batch).thenApply(parts -> {
+            invalidateSalesOrderLists();
+            return parts;
+        });
+    }
+    
     public String updateSalesOrder(String orderId, String newPurchaseOrder, String etag) throws IOException, InterruptedException {
-        fetchCsrfToken();
+        return await(updateSalesOrderAsync(orderId, newPurchaseOrder, etag));
+    }
 
+    public CompletableFuture<String> updateSalesOrderAsync(String orderId, String newPurchaseOrder, String etag) {
         if (etag == null || etag.isBlank()) {
-            throw new IllegalArgumentException("ETag is missing or empty. Cannot perform update.");
+            return CompletableFuture.failedFuture(new IllegalArgumentException("ETag is missing or empty. Cannot perform update."));
         }
 
         String fullUri = String.format("%sA_SalesOrder('%s')", this.baseUri, orderId);
-        String jsonPayload = String.format("{\"PurchaseOrderByCustomer\": \"%s\"}", newPurchaseOrder);
+        // The value arrives decoded, so it has to be escaped again; quotes must not end the string.
+        String jsonPayload = new JSONObject().put("PurchaseOrderByCustomer", newPurchaseOrder).toString();
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(fullUri))
-                .header("Authorization", this.authHeaderValue)
+        AsyncLogger.debug("Executing MERGE request with ETag: " + etag);
+        return sendWithCsrfToken("update", token -> newRequest("update", fullUri)
                 .header("Content-Type", "application/json")
                 .header("Accept", "application/json")
-                .header("X-CSRF-Token", this.csrfToken)
+                .header("X-CSRF-Token", token)
                 .header("If-Match", etag)
                 // THE FIX: Change the method from "PATCH" to "MERGE"
                 .method("MERGE", BodyPublishers.ofString(jsonPayload))
-                .build();
-
-        System.out.println("Executing MERGE request with ETag: " + etag); // Changed log message
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                .build())
+                .thenApply(response -> {
+                    invalidateAfterWrite(orderId, response.statusCode());
+                    if (response.statusCode() == 204) {
+                        AsyncLogger.debug("SUCCESS: Update was successful.");
+                        return "";
+                    }
 
-        if (response.statusCode() == 204) {
-            System.out.println("SUCCESS: Update was successful.");
-            return "";
-        }
-        
-        handleResponseStatusCode(response.statusCode());
-        return response.body();
+                    handleResponseStatusCode(response.statusCode());
+                    return response.body();
+                });
     }
     
     
     
     //***************************************
     public void deleteSalesOrderItem(String orderId, String itemId, String etag) throws IOException, InterruptedException {
-        fetchCsrfToken(); // Ensure we have a valid CSRF token
+        await(deleteSalesOrderItemAsync(orderId, itemId, etag));
+    }
 
+    public CompletableFuture<Void> deleteSalesOrderItemAsync(String orderId, String itemId, String etag) {
         if (etag == null || etag.isBlank()) {
-            throw new IllegalArgumentException("ETag is missing. Cannot perform delete.");
+            return CompletableFuture.failedFuture(new IllegalArgumentException("ETag is missing. Cannot perform delete."));
         }
 
         // The OData endpoint for deleting a line item is its own entity set
@@ -171,53 +495,411 @@ public class ApiClient {
             itemId
         );
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(fullUri))
-                .header("Authorization", this.authHeaderValue)
-                .header("X-CSRF-Token", this.csrfToken)
+        AsyncLogger.debug("Executing DELETE request to: " + fullUri);
+        // Sent with a valid CSRF token, renewed once if SAP rejects it.
+        return sendWithCsrfToken("delete", token -> newRequest("delete", fullUri)
+                .header("X-CSRF-Token", token)
                 .header("If-Match", etag) // Use the parent order's ETag for the lock check
                 .DELETE()
-                .build();
+                .build())
+                .thenAccept(response -> {
+                    invalidateAfterWrite(orderId, response.statusCode());
+                    // Any 2xx (normally 204 No Content) means the item is gone; anything else is an error.
+                    handleResponseStatusCode(response.statusCode());
+                    AsyncLogger.debug("SUCCESS: Item deleted successfully.");
+                });
+    }
         
-        System.out.println("Executing DELETE request to: " + fullUri);
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    public void deleteSalesOrderItems(String orderId, List<String> itemIds, String etag) throws IOException, InterruptedException {
+        await(deleteSalesOrderItemsAsync(orderId, itemIds, etag));
+    }
+    
+    /**
+     * Deletes several line items of one order in a single $batch change set,
+     * so either all of them are removed or none.
+     */
+    public CompletableFuture<Void> deleteSalesOrderItemsAsync(String orderId, List<String> itemIds, String etag) {
+        if (etag == null || etag.isBlank()) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("ETag is missing. Cannot perform delete."));
+        }
 
-        // A successful delete operation returns a 204 No Content status code.
-        if (response.statusCode() == 204) {
-            System.out.println("SUCCESS: Item deleted successfully.");
-            return;
+        ODataBatch batch = new ODataBatch().beginChangeSet();
+        for (String itemId : itemIds) {
+            batch.delete(String.format("A_SalesOrderItem(SalesOrder='%s',SalesOrderItem='%s')", orderId, itemId), etag);
         }
-        
-        // If the status is not 204, handle it as an error.
-        handleResponseStatusCode(response.statusCode());
+
+        return executeBatchAsync(batch).thenAccept(parts -> {
+            // A failed change set answers with a single error part, e.g. 412 for an outdated ETag.
+            invalidateAfterWrite(orderId, parts.isEmpty() ? 200 : parts.get(0).getStatusCode());
+            for (ODataBatch.Part part : parts) {
+                handleResponseStatusCode(part.getStatusCode());
+            }
+            AsyncLogger.debug("SUCCESS: " + itemIds.size() + " items deleted in one change set.");
+        });
     }
     
     //************************************
     
     
-    public String getLastETag() {
-        return this.lastETag;
+    public String getUsername() {
+        return this.username;
+    }
+
+    public ODataResponseCache getResponseCache() {
+        return this.responseCache;
+    }
+    
+    public SingleFlight<ODataResponseCache.Entry> getUpstreamGets() {
+        return this.upstreamGets;
+    }
+    
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+    
+    /** Drops every cached read of the given order (header, items) and all order lists. */
+    private void invalidateSalesOrder(String orderId) {
+        String headerKey = String.format("A_SalesOrder('%s')", orderId);
+        responseCache.invalidateIf(uri -> uri.contains(headerKey) || isSalesOrderListUri(uri));
+    }
+    
+    /**
+     * After a write: a 2xx changed the order, and a 412 shows the cached ETag is out of date,
+     * so either way the next read has to come from SAP.
+     */
+    private void invalidateAfterWrite(String orderId, int statusCode) {
+        if ((statusCode >= 200 && statusCode < 300) || statusCode == 412) {
+            invalidateSalesOrder(orderId);
+        }
+    }
+    
+    private void invalidateSalesOrderLists() {
+        responseCache.invalidateIf(ApiClient::isSalesOrderListUri);
+    }
+    
+    private static boolean isSalesOrderListUri(String uri) {
+        return uri.contains("A_SalesOrder?");
+    }
+    
+    private CompletableFuture<ODataResponse> executeGetRequest(String fullUri) {
+        ODataResponseCache.Entry cached = responseCache.get(fullUri);
+        if (cached != null && cached.isFresh()) {
+            responseCache.recordHit();
+            return CompletableFuture.completedFuture(toResponse(fullUri, cached, false));
+        }
+        if (cached != null && !circuitBreaker.isCallPermitted()) {
+            // SAP is known to be down: show the last known state instead of an error.
+            Metrics.increment(Metrics.STALE_RESPONSES, "");
+            return CompletableFuture.completedFuture(toResponse(fullUri, cached, true));
+        }
+        responseCache.recordMiss();
+        
+        // Identical concurrent misses (e.g. every user loading the list at shift start)
+        // share a single Gateway call. Reads only join calls started since the last
+        // invalidation: one started before a write may still return the old body.
+        long generation = responseCache.getGeneration();
+        CompletableFuture<ODataResponse> fresh = upstreamGets.execute(generation + " " + fullUri, () -> fetchFromSap(fullUri, cached, generation))
+                .thenApply(entry -> toResponse(fullUri, entry, false));
+        if (cached == null) {
+            return fresh;
+        }
+        return fresh.exceptionallyCompose(error -> {
+            if (!isUpstreamFailure(error)) {
+                return CompletableFuture.failedFuture(error);
+            }
+            Metrics.increment(Metrics.STALE_RESPONSES, "");
+            return CompletableFuture.completedFuture(toResponse(fullUri, cached, true));
+        });
     }
     
+    private CompletableFuture<ODataResponseCache.Entry> fetchFromSap(String fullUri, ODataResponseCache.Entry cached, long generation) {
+        HttpRequest.Builder requestBuilder = newRequest(readOperation(fullUri), fullUri)
+                .header("Accept", "application/xml")
+                .GET();
+        // A stale entry with an ETag lets SAP answer 304 instead of resending the body.
+        if (cached != null && cached.getETag() != null) {
+            requestBuilder.header("If-None-Match", cached.getETag());
+        }
+        
+        AsyncLogger.debug("Executing GET request to: " + fullUri);
+        return sendIdempotent(readOperation(fullUri), requestBuilder.build(), 0).thenApply(response -> {
+            if (response.statusCode() == 304 && cached != null) {
+                responseCache.markRevalidated(cached);
+                return cached;
+            }
+        
+            handleResponseStatusCode(response.statusCode());
+            String etag = response.headers().firstValue("etag").orElse(null);
+            return responseCache.put(fullUri, response.body(), etag, generation);
+        });
+    }
     
-    private String executeGetRequest(String fullUri) throws IOException, InterruptedException {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(fullUri))
-                .header("Authorization", this.authHeaderValue)
+    private CompletableFuture<ODataStream> executeStreamingGetRequest(String fullUri) {
+        HttpRequest request = newRequest(readOperation(fullUri), fullUri)
                 .header("Accept", "application/xml")
                 .GET()
                 .build();
-        
-        System.out.println("Executing GET request to: " + fullUri);
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-        
+
+        AsyncLogger.debug("Executing streaming GET request to: " + fullUri);
+        // The read bulkhead counts the call until the body has been copied to the browser, not only until the headers.
+        return send(readOperation(fullUri), request, HttpResponse.BodyHandlers.ofInputStream(), ApiClient::releaseOnClose).thenApply(response -> {
+            if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                closeQuietly(response.body());
+                handleResponseStatusCode(response.statusCode());
+            }
+            String etag = SALES_ORDER_HEADER_URL_PATTERN.matcher(fullUri).matches()
+                    ? response.headers().firstValue("etag").orElse(null)
+                    : null;
+            return new ODataStream(
+                    response.body(),
+                    etag,
+                    response.headers().firstValue("content-type").orElse("application/xml"),
+                    response.headers().firstValueAsLong("content-length").orElse(-1L));
+        });
+    }
+
+    /** The body, which runs {@code release} once it is closed. */
+    private static InputStream releaseOnClose(InputStream body, Runnable release) {
+        return new FilterInputStream(body) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    release.run();
+                }
+            }
+        };
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // Nothing useful to do; the connection is discarded anyway.
+        }
+    }
+
+    /** The metrics label of a GET: the order list, one order header or its items. */
+    private static String readOperation(String fullUri) {
+        if (fullUri.endsWith("/to_Item")) {
+            return "items";
+        }
+        return SALES_ORDER_HEADER_URL_PATTERN.matcher(fullUri).matches() ? "detail" : "list";
+    }
+
+    private static boolean isWrite(String operation) {
+        switch (operation) {
+            case "list":
+            case "detail":
+            case "items":
+            case "batch_read":
+            case "sync":
+                return false;
+            default:
+                // create, update, delete, batch and the CSRF fetch that precedes them.
+                return true;
+        }
+    }
+
+    /**
+     * Reads are cut off sooner than writes: a read can simply be tried again, while an
+     * abandoned write leaves the user unsure whether it was saved. Each operation can be
+     * tuned with {@code portal.upstream.timeoutSeconds.<operation>}.
+     */
+    private Duration timeoutFor(String operation) {
+        return operationTimeouts.computeIfAbsent(operation, op -> {
+            Long seconds = Long.getLong("portal.upstream.timeoutSeconds." + op);
+            if (seconds != null) {
+                return Duration.ofSeconds(seconds);
+            }
+            return isWrite(op) && !"csrf_fetch".equals(op) ? this.requestTimeout : min(this.requestTimeout, Duration.ofSeconds(10));
+        });
+    }
+
+    private static Duration min(Duration a, Duration b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private HttpRequest.Builder newRequest(String operation, String fullUri) {
+        URI uri = URI.create(fullUri);
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(uri)
+                .timeout(timeoutFor(operation))
+                .header("Authorization", this.authHeaderValue);
+        // SAP binds the CSRF token to the session cookie, so writes must carry the cookies of the fetch.
+        try {
+            for (List<String> cookies : cookieManager.get(uri, Map.of()).values()) {
+                if (!cookies.isEmpty()) {
+                    builder.header("Cookie", String.join("; ", cookies));
+                }
+            }
+        } catch (IOException e) {
+            AsyncLogger.debug("Could not read session cookies: " + e.getMessage());
+        }
+        return builder;
+    }
+
+    private <T> HttpResponse<T> rememberCookies(HttpResponse<T> response) {
+        try {
+            cookieManager.put(response.request().uri(), response.headers().map());
+        } catch (IOException e) {
+            AsyncLogger.debug("Could not store session cookies: " + e.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * Sends an idempotent GET, retrying transient failures (timeouts, connection errors,
+     * 502/503/504) with exponential backoff and full jitter. Retries are bounded both per
+     * call ({@code portal.upstream.retries}) and globally by the retry budget.
+     */
+    private CompletableFuture<HttpResponse<String>> sendIdempotent(String operation, HttpRequest request, int attempt) {
+        if (attempt == 0) {
+            retryBudget.recordRequest();
+        }
+        return send(operation, request).handle((response, error) -> {
+            boolean transientFailure = error != null
+                    ? isTransient(unwrap(error))
+                    : response.statusCode() == 502 || response.statusCode() == 503 || response.statusCode() == 504;
+            if (!transientFailure || attempt >= maxRetries || !retryBudget.tryAcquireRetry()) {
+                return error != null
+                        ? CompletableFuture.<HttpResponse<String>>failedFuture(error)
+                        : CompletableFuture.completedFuture(response);
+            }
+            // Full jitter: a random delay up to the exponential bound keeps retrying clients apart.
+            long bound = Math.min(2000, retryBaseDelayMillis << attempt);
+            long delay = ThreadLocalRandom.current().nextLong(bound + 1);
+            Metrics.increment(Metrics.UPSTREAM_RETRIES, Metrics.labels("operation", operation));
+            AsyncLogger.debug("Retrying " + operation + " in " + delay + " ms (attempt " + (attempt + 1) + ")");
+            return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> sendIdempotent(operation, request, attempt + 1));
+        }).thenCompose(Function.identity());
+    }
+
+    /** Transport failures worth retrying; local rejections (bulkhead, open circuit) are not. */
+    private static boolean isTransient(Throwable error) {
+        return error instanceof IOException && !(error instanceof UpstreamBusyException);
+    }
+
+    /** True for failures that mean SAP is unavailable, as opposed to SAP rejecting the request. */
+    private static boolean isUpstreamFailure(Throwable error) {
+        Throwable cause = unwrap(error);
+        return cause instanceof IOException
+                || cause instanceof UpstreamBusyException
+                || (cause instanceof UpstreamStatusException && ((UpstreamStatusException) cause).isServerError());
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * Sends a request without blocking. Fails fast with {@link UpstreamBusyException}
+     * when the operation's bulkhead is full, and with {@link CircuitOpenException} while
+     * the circuit breaker is open. The call's latency is recorded under {@code operation}
+     * and the SAP status code, and its outcome feeds the circuit breaker.
+     */
+    private CompletableFuture<HttpResponse<String>> send(String operation, HttpRequest request) {
+        return send(operation, request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> send(String operation, HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+        return send(operation, request, bodyHandler, null);
+    }
+
+    /**
+     * Like {@link #send(String, HttpRequest)}. Without {@code holdBulkhead} the bulkhead permit
+     * is returned when the response has arrived. With it, a body that is read later (a stream)
+     * is passed through {@code holdBulkhead} together with the release of the permit, which it
+     * must run once the body is done with; the permit is still returned here if the call fails.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> send(String operation, HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler,
+            BiFunction<T, Runnable, T> holdBulkhead) {
+        Semaphore bulkhead = isWrite(operation) ? outstandingWrites : outstandingReads;
+        if (!bulkhead.tryAcquire()) {
+            Metrics.increment(Metrics.UPSTREAM_REJECTED, Metrics.labels("operation", operation, "reason", "bulkhead"));
+            return CompletableFuture.failedFuture(new UpstreamBusyException(
+                    "Too many outstanding SAP " + (isWrite(operation) ? "writes." : "reads.")));
+        }
+        CircuitBreaker.Permit permit = circuitBreaker.tryAcquirePermission();
+        if (permit == null) {
+            bulkhead.release();
+            Metrics.increment(Metrics.UPSTREAM_REJECTED, Metrics.labels("operation", operation, "reason", "circuit_open"));
+            return CompletableFuture.failedFuture(new CircuitOpenException(
+                    "SAP is currently unavailable.", circuitBreaker.getRetryAfterSeconds()));
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                bulkhead.release();
+            }
+        };
+        HttpResponse.BodyHandler<T> handler = holdBulkhead == null ? bodyHandler
+                : info -> HttpResponse.BodySubscribers.mapping(bodyHandler.apply(info), body -> holdBulkhead.apply(body, release));
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<T>> call;
+        try {
+            call = httpClient.sendAsync(request, handler);
+        } catch (RuntimeException e) {
+            release.run();
+            circuitBreaker.recordIgnored(permit);
+            throw e;
+        }
+        call.whenComplete((response, error) -> {
+            if (holdBulkhead == null || response == null) {
+                release.run();
+            }
+            Throwable cause = error == null ? null : unwrap(error);
+            if (response != null ? response.statusCode() >= 500 : cause instanceof IOException) {
+                circuitBreaker.recordFailure(permit);
+            } else if (response != null) {
+                circuitBreaker.recordSuccess(permit);
+            } else {
+                circuitBreaker.recordIgnored(permit);
+            }
+            String status = response != null ? String.valueOf(response.statusCode())
+                    : cause instanceof HttpTimeoutException ? "timeout" : "error";
+            Metrics.recordLatency(Metrics.UPSTREAM_REQUESTS,
+                    Metrics.labels("operation", operation, "method", request.method(), "status", status),
+                    System.nanoTime() - start);
+        });
+        // Stored before any caller sees the response, so a write after a CSRF fetch has its cookie.
+        return call.thenApply(this::rememberCookies);
+    }
+
+    /** Blocks on an async call and rethrows its failure the way the blocking API always did. */
+    private static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static ODataResponse toResponse(String fullUri, ODataResponseCache.Entry entry, boolean stale) {
+        // Only the sales order header ETag is handed to the browser, for later MERGE/DELETE calls.
+        // Feeds have no ETag of their own; the browser revalidates them with a hash of the body.
         if (SALES_ORDER_HEADER_URL_PATTERN.matcher(fullUri).matches()) {
-            this.lastETag = response.headers().firstValue("etag").orElse(null);
-            System.out.println("Captured Sales Order Header ETag: " + this.lastETag);
+            return new ODataResponse(entry.getBody(), entry.getETag(), stale);
         }
-        
-        handleResponseStatusCode(response.statusCode());
-        return response.body();
+        return new ODataResponse(entry.getBody(), null, stale, entry.getContentTag());
     }
 
     private void handleResponseStatusCode(int statusCode) {
@@ -233,7 +915,7 @@ public class ApiClient {
                 case 500: errorMessage += "(Internal Server Error)"; break;
                 default: errorMessage += "(Unknown error)"; break;
             }
-            throw new RuntimeException(errorMessage);
+            throw new UpstreamStatusException(statusCode, errorMessage);
         }
     }
-}
\ No newline at end of file
+}
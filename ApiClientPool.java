@@ -0,0 +1,120 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one SAP session ({@link ApiClient}) per portal user, so users no longer share one
+ * session cookie, CSRF token and response cache. All sessions are opened with
+ * {@link ApiClient#forUser} and therefore share the HTTP client and its connections: a new
+ * user costs a CSRF fetch, not a new connection pool.
+ *
+ * Sessions are keyed by user name and a hash of the password, so a request with another
+ * password never rides on an existing session. At most {@code maxSessions} are kept; the
+ * least recently used one makes room for a new user, and a background sweep drops sessions
+ * that were idle for {@code idleMillis}.
+ */
+public class ApiClientPool {
+
+    private static final class Session {
+        final ApiClient client;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Session(ApiClient client) {
+            this.client = client;
+        }
+    }
+
+    private final ApiClient template;
+    private final int maxSessions;
+    private final long idleMillis;
+    private final int cacheEntries;
+    // Access-ordered, so the eldest entry is the least recently used session. Guarded by this.
+    private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScheduledExecutorService evictor;
+    private long created;
+    private long evicted;
+
+    public ApiClientPool(ApiClient template, int maxSessions, long idleMillis, int cacheEntries) {
+        this.template = template;
+        this.maxSessions = maxSessions;
+        this.idleMillis = idleMillis;
+        this.cacheEntries = cacheEntries;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "portal-session-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepMillis = Math.max(1000, idleMillis / 4);
+        evictor.scheduleWithFixedDelay(this::evictIdle, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Returns the user's session, opening one if there is none. */
+    public ApiClient get(String username, String password) {
+        String key = username + ":" + fingerprint(username, password);
+        synchronized (this) {
+            Session session = sessions.get(key);
+            if (session == null) {
+                session = new Session(template.forUser(username, password, cacheEntries));
+                sessions.put(key, session);
+                created++;
+                if (sessions.size() > maxSessions) {
+                    Iterator<Session> eldest = sessions.values().iterator();
+                    eldest.next();
+                    eldest.remove();
+                    evicted++;
+                }
+            }
+            session.lastUsed = System.currentTimeMillis();
+            return session.client;
+        }
+    }
+
+    /** Forgets a session, e.g. after SAP rejected its credentials. */
+    public synchronized void remove(ApiClient client) {
+        sessions.values().removeIf(session -> session.client == client);
+    }
+
+    private synchronized void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        Iterator<Map.Entry<String, Session>> it = sessions.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().lastUsed < cutoff) {
+                it.remove();
+                evicted++;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    public void close() {
+        evictor.shutdownNow();
+    }
+
+    /** The password is only kept inside the session's Authorization header, never as a map key. */
+    private static String fingerprint(String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest((username + ":" + password).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
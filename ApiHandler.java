@@ -1,148 +1,907 @@
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.http.HttpTimeoutException;
 import java.nio.charset.StandardCharsets;
-import java.util.regex.Matcher;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+/**
+ * Proxies the portal's /api/ routes to SAP. Upstream calls are non-blocking: the handler
+ * thread only starts the call, and the exchange is completed when the future finishes.
+ */
 public class ApiHandler implements HttpHandler {
 
+    /** Writes the result of a finished upstream call to the browser. */
+    @FunctionalInterface
+    private interface ResponseWriter<T> {
+        void write(HttpExchange exchange, T result) throws IOException;
+    }
+
+    /**
+     * What is known about the request being dispatched on this thread. HttpExchange attributes
+     * cannot hold it: the JDK server shares them between all exchanges of a context.
+     */
+    private static final class RequestState {
+        final long start = System.nanoTime();
+        // The matched route template; metrics are labelled with it, never with the raw path, to keep the series count fixed.
+        String route;
+        // The SAP session serving the request; see selectClient().
+        ApiClient client;
+    }
+
+    /** Answers one route; the path parameters are in {@code match}. */
+    @FunctionalInterface
+    private interface RouteHandler {
+        void handle(HttpExchange exchange, Router.Match<RouteHandler> match) throws IOException;
+    }
+
+    // The service account's session: used for every call unless per-user sessions are on, and always for the index.
     private final ApiClient apiClient;
-    private static final Pattern ORDER_ID_PATTERN = Pattern.compile("/api/sales-order/(\\d+)");
-    //****
-    private static final Pattern ORDER_ITEM_PATTERN = Pattern.compile("/api/sales-order/(\\d+)/item/(\\d+)");
+    // One SAP session per browser user (HTTP Basic credentials passed through); null unless portal.sessions.perUser is set.
+    private final ApiClientPool sessions;
+    // When enabled, OData reads are piped to the browser instead of being buffered.
+    private final boolean streamingEnabled = Boolean.getBoolean("portal.api.streaming");
+    private final int bulkMaxOrders = Integer.getInteger("portal.bulk.maxOrders", 1000);
+    private final int bulkMaxBytes = Integer.getInteger("portal.bulk.maxBytes", 4 * 1024 * 1024);
+    private final int bulkParallelism = Integer.getInteger("portal.bulk.parallelism", 8);
+    private final int bulkBatchSize = Integer.getInteger("portal.bulk.batchSize", 20);
+    // Local copy of the user's order headers for /api/sales-orders/search; the synchronizer is null when disabled.
+    private final SalesOrderIndex orderIndex = new SalesOrderIndex();
+    private final SalesOrderSynchronizer synchronizer;
+    // Accepts writes sent with "Prefer: respond-async" and replays them to SAP; null unless portal.writes.async is set.
+    private final AsyncWriteQueue writeQueue;
+    // Server-Sent Events on /events; registered by WebServer outside the /api/ concurrency limit.
+    private final OrderEventHub orderEvents = new OrderEventHub(
+            Integer.getInteger("portal.events.maxClients", 1000),
+            Long.getLong("portal.events.heartbeatSeconds", 25),
+            Long.getLong("portal.events.writeTimeoutSeconds", 10));
+    // Bodies of at least this many bytes are gzipped for browsers that accept it; -1 turns compression off.
+    private final int gzipMinBytes = Integer.getInteger("portal.api.gzipMinBytes", 1024);
+    private static final int GZIP_BUFFER_BYTES = 8 * 1024;
+    private static final BufferPool BUFFER_POOL = new BufferPool(
+            Integer.getInteger("portal.stream.pooledBuffers", 64),
+            Integer.getInteger("portal.stream.bufferSize", 16 * 1024));
+    // Filled once by registerRoutes(); read-only afterwards.
+    private final Router<RouteHandler> routes = new Router<>();
+    private static final Set<String> UPDATE_FIELDS = Set.of("PurchaseOrderByCustomer", "etag");
+    private static final long MAX_UPDATE_BODY_BYTES = 16 * 1024;
+    private static final Set<String> METHODS = Set.of("GET", "POST", "PATCH", "MERGE", "DELETE");
+    private static final Pattern SAP_USER_PATTERN = Pattern.compile("[A-Za-z0-9._@-]{1,40}");
+    // The request dispatched on this thread; respondWhenDone() takes it over.
+    private final ThreadLocal<RequestState> currentRequest = new ThreadLocal<>();
 
 
+    /** Connects with the service account configured through {@link PortalConfig}. */
     public ApiHandler() {
-        String serviceUrl = "http://********************************/sap/opu/odata/sap/API_SALES_ORDER_SRV/";
-        String username = "HZIDANI";
-        String password = "****************";
-        this.apiClient = new ApiClient(serviceUrl, username, password);
+        this(new ApiClient(
+                PortalConfig.require(PortalConfig.SERVICE_URL),
+                PortalConfig.require(PortalConfig.USERNAME),
+                PortalConfig.require(PortalConfig.PASSWORD)));
+    }
+
+    public ApiHandler(ApiClient apiClient) {
+        this.apiClient = apiClient;
+        registerRoutes();
+        this.sessions = startSessions();
+        this.synchronizer = startOrderIndex();
+        this.writeQueue = startWriteQueue();
+        registerCacheGauges();
+    }
+
+    private void registerRoutes() {
+        routes.add("GET", "/api/sales-orders", this::handleOrderList)
+                .add("POST", "/api/sales-orders", this::handleCreate)
+                .add("GET", "/api/sales-orders/page", this::handleOrderPage)
+                .add("GET", "/api/sales-orders/search", (exchange, match) -> handleIndexSearch(exchange))
+                .add("POST", "/api/sales-orders/bulk", (exchange, match) -> handleBulkCreate(exchange))
+                .add("GET", "/api/cache-stats", (exchange, match) ->
+                        sendSuccessResponse(exchange, cacheStatsJson(client()), "application/json", 200))
+                .add("GET", "/api/writes", (exchange, match) -> handleWriteList(exchange))
+                .add("GET", "/api/writes/{id:digits}", this::handleWriteStatus)
+                .add("GET", "/api/sales-order/{id:digits}", this::handleOrderDetail)
+                .add("PATCH", "/api/sales-order/{id:digits}", this::handleUpdate)
+                .add("MERGE", "/api/sales-order/{id:digits}", this::handleUpdate)
+                .add("GET", "/api/sales-order/{id:digits}/items", this::handleOrderItems)
+                .add("DELETE", "/api/sales-order/{id:digits}/items", this::handleDeleteItems)
+                .add("GET", "/api/sales-order/{id:digits}/full", this::handleOrderFull)
+                .add("DELETE", "/api/sales-order/{id:digits}/item/{id:digits}", this::handleDeleteItem);
+    }
+
+    private ApiClientPool startSessions() {
+        if (!Boolean.getBoolean("portal.sessions.perUser")) {
+            return null;
+        }
+        return new ApiClientPool(apiClient,
+                Integer.getInteger("portal.sessions.max", 500),
+                Long.getLong("portal.sessions.idleMinutes", 30) * 60_000,
+                Integer.getInteger("portal.sessions.cacheEntries", 50));
+    }
+
+    private SalesOrderSynchronizer startOrderIndex() {
+        if (!Boolean.parseBoolean(System.getProperty("portal.index.enabled", "true"))) {
+            return null;
+        }
+        if (sessions != null) {
+            // The index holds the service account's orders; searching it would bypass the users' own SAP authorizations.
+            AsyncLogger.info("Order search and /events are off while portal.sessions.perUser is set.");
+            return null;
+        }
+        orderIndex.setChangeListener(this::publishIndexChange);
+        SalesOrderSynchronizer sync = new SalesOrderSynchronizer(apiClient, orderIndex,
+                Long.getLong("portal.index.syncSeconds", 30) * 1000,
+                Long.getLong("portal.index.fullSyncMinutes", 60) * 60_000,
+                Integer.getInteger("portal.index.pageSize", 500));
+        sync.start();
+        return sync;
+    }
+
+    private AsyncWriteQueue startWriteQueue() {
+        if (!Boolean.getBoolean("portal.writes.async")) {
+            return null;
+        }
+        if (sessions != null) {
+            // The log does not keep passwords, so queued writes could only be replayed as the service account.
+            AsyncLogger.warn("portal.writes.async is ignored while portal.sessions.perUser is set.");
+            return null;
+        }
+        WriteAheadLog log;
+        try {
+            log = WriteAheadLog.open(Path.of(System.getProperty("portal.writes.logFile", "portal-writes.log")),
+                    Boolean.parseBoolean(System.getProperty("portal.writes.fsync", "true")));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the write log", e);
+        }
+        AsyncWriteQueue queue = new AsyncWriteQueue(apiClient, log, write -> {
+            if (write.getState() != AsyncWriteQueue.State.DONE) {
+                return;
+            }
+            if (AsyncWriteQueue.CREATE.equals(write.getOperation())) {
+                orderCreated(write.getSalesOrder(), write.getBody());
+            } else {
+                orderChanged(write.getOrderId());
+            }
+        }, Long.getLong("portal.writes.compactBytes", 1024 * 1024));
+        queue.start();
+        return queue;
+    }
+
+    private void registerCacheGauges() {
+        ODataResponseCache cache = apiClient.getResponseCache();
+        Metrics.gauge("portal_cache_hits_total", "OData reads answered from the response cache.", cache::getHits);
+        Metrics.gauge("portal_cache_misses_total", "OData reads that needed a call to SAP.", cache::getMisses);
+        Metrics.gauge("portal_cache_revalidations_total", "Stale cache entries confirmed by SAP with 304.", cache::getRevalidations);
+        Metrics.gauge("portal_cache_entries", "OData reads currently cached.", cache::size);
+        Metrics.gauge("portal_upstream_coalesced_total", "Reads that joined an identical call already in flight.",
+                apiClient.getUpstreamGets()::getCoalesced);
+        CircuitBreaker breaker = apiClient.getCircuitBreaker();
+        Metrics.gauge("portal_upstream_circuit_open", "1 while the SAP circuit breaker is open or half-open, else 0.",
+                () -> breaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1);
+        Metrics.gauge("portal_upstream_circuit_opened_total", "How often the SAP circuit breaker has opened.",
+                breaker::getTimesOpened);
+        if (synchronizer != null) {
+            Metrics.gauge("portal_index_orders", "Order headers in the local search index.", orderIndex::size);
+            Metrics.gauge("portal_index_sync_age_seconds", "Seconds since the order index last synced with SAP.",
+                    () -> synchronizer.getLastSuccess() == 0 ? -1 : (System.currentTimeMillis() - synchronizer.getLastSuccess()) / 1000);
+            Metrics.gauge("portal_index_sync_failures_total", "Order index syncs that failed.", synchronizer::getFailures);
+        }
+        Metrics.gauge("portal_events_clients", "Browsers connected to /events.", orderEvents::getClientCount);
+        Metrics.gauge("portal_events_published_total", "Order change events sent to connected browsers.", orderEvents::getPublished);
+        Metrics.gauge("portal_events_dropped_total", "Event stream clients disconnected for not reading or failed writes.", orderEvents::getDropped);
+        if (sessions != null) {
+            Metrics.gauge("portal_sessions_active", "Per-user SAP sessions currently open.", sessions::size);
+            Metrics.gauge("portal_sessions_created_total", "Per-user SAP sessions opened.", sessions::getCreated);
+            Metrics.gauge("portal_sessions_evicted_total", "Per-user SAP sessions closed for being idle or least recently used.",
+                    sessions::getEvicted);
+        }
+        if (writeQueue != null) {
+            Metrics.gauge("portal_write_queue_pending", "Accepted writes not yet applied in SAP.", writeQueue::getPendingCount);
+        }
+    }
+
+    public OrderEventHub getOrderEvents() {
+        return orderEvents;
+    }
+
+    /**
+     * The handler for /events. With per-user sessions the stream is off, because it would show
+     * every user the orders of all the others: signed-in browsers get 404 and refetch after
+     * their own changes instead, anonymous ones the same 401 challenge as /api/.
+     */
+    public HttpHandler getEventsHandler() {
+        if (sessions == null) {
+            return orderEvents;
+        }
+        return exchange -> {
+            try {
+                if (basicCredentials(exchange) == null) {
+                    sendAuthenticationChallenge(exchange);
+                } else {
+                    sendErrorResponse(exchange, 404, "Not Found: order events are off with per-user sessions.");
+                }
+            } finally {
+                exchange.close();
+            }
+        };
     }
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
         String requestMethod = exchange.getRequestMethod();
-        
+        RequestState state = new RequestState();
+        currentRequest.set(state);
        
             try {
-                if ("GET".equalsIgnoreCase(requestMethod)) {
-                    handleGetRequest(exchange);
-                } else if ("POST".equalsIgnoreCase(requestMethod)) {
-                    handlePostRequest(exchange);
-                } else if ("PATCH".equalsIgnoreCase(requestMethod) || "MERGE".equalsIgnoreCase(requestMethod)) {
-                	handlePatchRequest(exchange);
-                } else if ("DELETE".equalsIgnoreCase(requestMethod)) {
-                    handleDeleteRequest(exchange); // NEW: Route DELETE requests.
-                } else {
+                Router.Match<RouteHandler> match = routes.match(requestMethod, exchange.getRequestURI().getPath());
+                state.route = match.getRoute();
+                if (!selectClient(exchange, state)) {
+                    return;
+                }
+                if (match.getStatus() == Router.Status.FOUND) {
+                    match.getHandler().handle(exchange, match);
+                } else if (match.getStatus() == Router.Status.METHOD_NOT_ALLOWED) {
+                    exchange.getResponseHeaders().set("Allow", match.getAllow());
                     sendErrorResponse(exchange, 405, "Method Not Allowed");
+                } else {
+                    sendErrorResponse(exchange, 404, "Not Found: API endpoint does not exist.");
                 }
             } catch (Exception e) {
-                e.printStackTrace();
+                AsyncLogger.error("Request " + requestMethod + " " + exchange.getRequestURI().getPath() + " failed", e);
                 sendErrorResponse(exchange, 500, "Internal server error: " + e.getMessage());
+            } finally {
+                // Still set if the request was answered right away instead of by respondWhenDone().
+                RequestState unanswered = currentRequest.get();
+                currentRequest.remove();
+                if (unanswered != null) {
+                    recordRoute(exchange, unanswered);
+                }
             }
         
     }
 
-    private void handleGetRequest(HttpExchange exchange) throws IOException, InterruptedException {
-        String path = exchange.getRequestURI().getPath();
-        String responseBody;
-        Matcher matcher = ORDER_ID_PATTERN.matcher(path);
+    /**
+     * Picks the SAP session for the request: the service account's, or with per-user sessions
+     * the one matching the browser's Basic credentials. Answers 401 and returns false if
+     * those are missing or malformed.
+     */
+    private boolean selectClient(HttpExchange exchange, RequestState state) throws IOException {
+        if (sessions == null) {
+            state.client = apiClient;
+            return true;
+        }
+        String[] credentials = basicCredentials(exchange);
+        if (credentials == null) {
+            sendAuthenticationChallenge(exchange);
+            return false;
+        }
+        state.client = sessions.get(credentials[0], credentials[1]);
+        return true;
+    }
+
+    /** User name (upper case) and password from the Basic Authorization header, or null if there are none or they are malformed. */
+    private static String[] basicCredentials(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String credentials = null;
+        if (authorization != null && authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            try {
+                credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                credentials = null;
+            }
+        }
+        int colon = credentials != null ? credentials.indexOf(':') : -1;
+        if (colon < 0 || !SAP_USER_PATTERN.matcher(credentials.substring(0, colon)).matches()) {
+            return null;
+        }
+        // SAP user names are case-insensitive and stored in upper case, e.g. in CreatedByUser.
+        return new String[] {credentials.substring(0, colon).toUpperCase(Locale.ROOT), credentials.substring(colon + 1)};
+    }
+
+    /** The SAP session chosen by {@link #selectClient} for the request dispatched on this thread. */
+    private ApiClient client() {
+        return currentRequest.get().client;
+    }
+
+    private void sendAuthenticationChallenge(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"SAP Sales Order Portal\", charset=\"UTF-8\"");
+        sendErrorResponse(exchange, 401, "Unauthorized: sign in with your SAP user.");
+    }
+
+    private static void recordRoute(HttpExchange exchange, RequestState state) {
+        String method = exchange.getRequestMethod().toUpperCase(Locale.ROOT);
+        Metrics.recordLatency(Metrics.HTTP_REQUESTS, Metrics.labels(
+                "method", METHODS.contains(method) ? method : "OTHER",
+                "route", state.route != null ? state.route : "unmatched",
+                "status", String.valueOf(exchange.getResponseCode())),
+                System.nanoTime() - state.start);
+    }
+
+    private void handleOrderList(HttpExchange exchange, Router.Match<RouteHandler> match) {
+        Set<String> projection = wantsJson(exchange) ? ODataJsonTransformer.ORDER_LIST_PROPERTIES : null;
+        if (streamingEnabled) {
+            respondWhenDone(exchange, client().streamSalesOrdersAsync(20), (ex, s) -> streamODataResponse(ex, s, projection));
+        } else {
+            respondWhenDone(exchange, client().getSalesOrdersAsync(20), (ex, r) -> sendODataResponse(ex, r, projection));
+        }
+    }
 
-        if (path.equals("/api/sales-orders")) {
-            responseBody = apiClient.getSalesOrders(20);
-        } else if (matcher.find()) {
-            String orderId = matcher.group(1);
-            if (path.endsWith("/items")) {
-                responseBody = apiClient.getSalesOrderItems(orderId);
+    private void handleOrderPage(HttpExchange exchange, Router.Match<RouteHandler> match) throws IOException {
+        SalesOrderPageQuery query;
+        try {
+            query = SalesOrderPageQuery.parse(exchange.getRequestURI().getRawQuery(), client().getUsername());
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(exchange, 400, "Bad Request: " + e.getMessage());
+            return;
+        }
+        respondWhenDone(exchange, client().getSalesOrderPageAsync(query.toODataQuery()),
+                (ex, r) -> sendSalesOrderPage(ex, query, r));
+    }
+
+    private void handleOrderDetail(HttpExchange exchange, Router.Match<RouteHandler> match) {
+        String orderId = match.param(0);
+        Set<String> projection = wantsJson(exchange) ? ODataJsonTransformer.ORDER_HEADER_PROPERTIES : null;
+        if (streamingEnabled) {
+            respondWhenDone(exchange, client().streamSalesOrderDetailAsync(orderId), (ex, s) -> streamODataResponse(ex, s, projection));
+        } else {
+            respondWhenDone(exchange, client().getSalesOrderDetailAsync(orderId), (ex, r) -> sendODataResponse(ex, r, projection));
+        }
+    }
+
+    private void handleOrderItems(HttpExchange exchange, Router.Match<RouteHandler> match) {
+        String orderId = match.param(0);
+        Set<String> projection = wantsJson(exchange) ? ODataJsonTransformer.ORDER_ITEM_PROPERTIES : null;
+        if (streamingEnabled) {
+            respondWhenDone(exchange, client().streamSalesOrderItemsAsync(orderId), (ex, s) -> streamODataResponse(ex, s, projection));
+        } else {
+            respondWhenDone(exchange, client().getSalesOrderItemsAsync(orderId), (ex, r) -> sendODataResponse(ex, r, projection));
+        }
+    }
+
+    /** Header and items in one $batch round trip to SAP. */
+    private void handleOrderFull(HttpExchange exchange, Router.Match<RouteHandler> match) {
+        boolean json = wantsJson(exchange);
+        respondWhenDone(exchange, client().getSalesOrderWithItemsAsync(match.param(0)), (ex, parts) -> {
+            if (parts.get(0).getHeader("warning") != null) {
+                ex.getResponseHeaders().set("Warning", parts.get(0).getHeader("warning"));
+            }
+            // Unchanged order ETag and items: the browser's copy is current, so skip the transformation.
+            String validator = fullValidator(parts, json);
+            if (sendIfNotModified(ex, validator)) {
+                return;
+            }
+            JSONObject full = new JSONObject();
+            full.put("etag", parts.get(0).getHeader("etag"));
+            if (json) {
+                full.put("header", new JSONObject(ODataJsonTransformer.toJson(parts.get(0).getBody(), ODataJsonTransformer.ORDER_HEADER_PROPERTIES)));
+                full.put("items", new JSONObject(ODataJsonTransformer.toJson(parts.get(1).getBody(), ODataJsonTransformer.ORDER_ITEM_PROPERTIES)));
             } else {
-                responseBody = apiClient.getSalesOrderDetail(orderId);
+                full.put("header", parts.get(0).getBody());
+                full.put("items", parts.get(1).getBody());
+            }
+            sendSuccessResponse(ex, full.toString(), validator != null ? validator : parts.get(0).getHeader("etag"), "application/json", 200);
+        });
+    }
+
+    /**
+     * The /full response changes when the order's ETag or its items change, and differs between
+     * JSON and XML, so its tag covers all three. The order's own ETag is in the body ("etag").
+     * Null if SAP sent no ETag for the order.
+     */
+    private static String fullValidator(List<ODataBatch.Part> parts, boolean json) {
+        String orderETag = parts.get(0).getHeader("etag");
+        String itemsTag = parts.get(1).getHeader("etag");
+        if (orderETag == null || itemsTag == null) {
+            return null;
+        }
+        return ODataResponseCache.contentTag((json ? "json " : "xml ") + orderETag + " " + itemsTag);
+    }
+
+    /**
+     * Searches the local order index instead of SAP; see {@link SalesOrderIndex.Query} for the
+     * parameters. Answers {@code {"results":[...],"count":n,"syncedAt":"..."}} with a stale
+     * Warning when the last sync attempts failed. Detail views still read from SAP.
+     */
+    private void handleIndexSearch(HttpExchange exchange) throws IOException {
+        if (synchronizer == null) {
+            sendErrorResponse(exchange, 404, "Not Found: the order index is disabled.");
+            return;
+        }
+        if (!orderIndex.isReady()) {
+            exchange.getResponseHeaders().set("Retry-After", "5");
+            sendErrorResponse(exchange, 503, "Service Unavailable: the order index is still loading.");
+            return;
+        }
+        SalesOrderIndex.Query query;
+        try {
+            query = SalesOrderIndex.Query.parse(exchange.getRequestURI().getRawQuery());
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(exchange, 400, "Bad Request: " + e.getMessage());
+            return;
+        }
+        if (synchronizer.isLastSyncFailed()) {
+            exchange.getResponseHeaders().set("Warning", ApiClient.STALE_WARNING);
+        }
+        sendSuccessResponse(exchange, orderIndex.search(query), "application/json", 200);
+    }
+
+    /**
+     * True if the browser asked for {@code Prefer: respond-async} and the write queue is
+     * enabled; otherwise the preference is ignored and the write runs while the browser waits.
+     */
+    private boolean wantsAsync(HttpExchange exchange) {
+        if (writeQueue == null) {
+            return false;
+        }
+        List<String> prefer = exchange.getRequestHeaders().get("Prefer");
+        return prefer != null && prefer.stream().anyMatch(value -> value.toLowerCase(Locale.ROOT).contains("respond-async"));
+    }
+
+    /** Queues the write and answers 202 with its tracking ID and status URL. */
+    private void submitAsync(HttpExchange exchange, String operation, String orderId, String itemId, String etag, String body) throws IOException {
+        if (!AsyncWriteQueue.CREATE.equals(operation) && (etag == null || etag.isBlank())) {
+            sendErrorResponse(exchange, 400, "Bad Request: ETag is missing. Cannot queue the change.");
+            return;
+        }
+        AsyncWriteQueue.Write write = writeQueue.submit(operation, orderId, itemId, etag, body);
+        exchange.getResponseHeaders().set("Location", "/api/writes/" + write.getId());
+        exchange.getResponseHeaders().set("Preference-Applied", "respond-async");
+        sendSuccessResponse(exchange, write.toJson().toString(), "application/json", 202);
+    }
+
+    /** GET /api/writes lists the queued writes. */
+    private void handleWriteList(HttpExchange exchange) throws IOException {
+        if (writeQueue == null) {
+            sendErrorResponse(exchange, 404, "Not Found: asynchronous writes are disabled.");
+            return;
+        }
+        JSONArray pending = new JSONArray();
+        writeQueue.getPending().forEach(write -> pending.put(write.toJson()));
+        sendSuccessResponse(exchange, new JSONObject().put("pending", pending).toString(), "application/json", 200);
+    }
+
+    /** GET /api/writes/{id} shows the outcome of one queued write. */
+    private void handleWriteStatus(HttpExchange exchange, Router.Match<RouteHandler> match) throws IOException {
+        if (writeQueue == null) {
+            sendErrorResponse(exchange, 404, "Not Found: asynchronous writes are disabled.");
+            return;
+        }
+        AsyncWriteQueue.Write write = writeQueue.get(Long.parseLong(match.param(0)));
+        if (write == null) {
+            sendErrorResponse(exchange, 404, "Not Found: unknown write ID.");
+            return;
+        }
+        sendSuccessResponse(exchange, write.toJson().toString(), "application/json", 200);
+    }
+
+    /** Runs {@link #orderChanged} once the write has succeeded. */
+    private <T> CompletableFuture<T> afterWrite(String orderId, CompletableFuture<T> write) {
+        write.thenRun(() -> orderChanged(orderId));
+        return write;
+    }
+
+    /**
+     * Tells the browsers watching the order about a change made through the portal, and lets
+     * the order index pick it up without waiting for the next sync.
+     */
+    private void orderChanged(String orderId) {
+        if (synchronizer != null) {
+            synchronizer.requestSync();
+        }
+        orderEvents.publishChanged(orderId, new JSONObject().put("SalesOrder", orderId).put("source", "portal"));
+    }
+
+    /** Like {@link #orderChanged}, for a new order; the list fields are taken from the create payload. */
+    private void orderCreated(String salesOrder, String payload) {
+        if (synchronizer != null) {
+            synchronizer.requestSync();
+        }
+        if (salesOrder == null) {
+            return;
+        }
+        JSONObject data = new JSONObject().put("SalesOrder", salesOrder).put("source", "portal");
+        try {
+            JSONObject order = new JSONObject(payload);
+            for (String field : ODataJsonTransformer.ORDER_LIST_PROPERTIES) {
+                data.putOpt(field, order.opt(field));
             }
+            data.put("SalesOrder", salesOrder);
+        } catch (JSONException e) {
+            // Only the number is known; the browser shows the rest as N/A.
+        }
+        orderEvents.publishCreated(data);
+    }
+
+    /** Forwards what the order index synchronizer found changed in SAP. */
+    private void publishIndexChange(JSONObject header, boolean created) {
+        header.put("source", "sap");
+        if (created) {
+            orderEvents.publishCreated(header);
         } else {
-            sendErrorResponse(exchange, 404, "Not Found: API endpoint does not exist.");
+            orderEvents.publishChanged(header.getString("SalesOrder"), header);
+        }
+    }
+
+    /** Answers a page request with {@code {"results":[...],"count":n,"next":"cursor"}}. */
+    private void sendSalesOrderPage(HttpExchange exchange, SalesOrderPageQuery query, ODataResponse response) throws IOException {
+        markIfStale(exchange, response);
+        if (sendIfNotModified(exchange, response.getValidator())) {
             return;
         }
-        sendSuccessResponse(exchange, responseBody, "application/xml", 200);
+        ODataJsonTransformer.FeedInfo feedInfo = new ODataJsonTransformer.FeedInfo();
+        JSONObject page = new JSONObject(ODataJsonTransformer.toJson(response.getBody(), query.getSelect(), feedInfo));
+        String next = query.nextCursor(page.getJSONArray("results").length(), feedInfo);
+        page.put("count", feedInfo.getCount() >= 0 ? feedInfo.getCount() : JSONObject.NULL);
+        page.put("next", next != null ? next : JSONObject.NULL);
+        sendSuccessResponse(exchange, page.toString(), response.getValidator(), "application/json", 200);
     }
 
-    private void handlePatchRequest(HttpExchange exchange) throws IOException, InterruptedException {
-        String path = exchange.getRequestURI().getPath();
-        Matcher matcher = ORDER_ID_PATTERN.matcher(path);
+    /**
+     * The compact JSON projection is used when the browser asks for it with
+     * {@code ?format=json} or {@code Accept: application/json}; otherwise SAP's XML is passed through.
+     * Unless the query decided, the response varies with Accept, and caches are told so.
+     */
+    private static boolean wantsJson(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && Arrays.asList(query.split("&")).contains("format=json")) {
+            return true;
+        }
+        addVary(exchange, "Accept");
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return accept != null && accept.startsWith("application/json");
+    }
 
-        if (matcher.find()) {
-            String orderId = matcher.group(1);
-            
-            InputStream is = exchange.getRequestBody();
-            String requestBody = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-            JSONObject json = new JSONObject(requestBody);
-            
-            String newPurchaseOrder = json.getString("PurchaseOrderByCustomer");
-            String etag = json.getString("etag");
-            System.out.println(newPurchaseOrder);
-            apiClient.updateSalesOrder(orderId, newPurchaseOrder, etag);
+    /**
+     * The XML and the JSON of one URL are different bodies, so they get different tags; otherwise
+     * a browser holding one would be told with 304 that it is the other. The tag is weak, so it
+     * also holds for the gzipped body. Null if there is no validator.
+     */
+    private static String formatValidator(String validator, boolean json) {
+        return validator == null ? null : ODataResponseCache.contentTag((json ? "json " : "xml ") + validator);
+    }
 
-            exchange.sendResponseHeaders(204, -1);
+    /** Sends the OData body as XML, or as JSON restricted to {@code projection} when it is not null. */
+    private void sendODataResponse(HttpExchange exchange, ODataResponse response, Set<String> projection) throws IOException {
+        markIfStale(exchange, response);
+        String validator = formatValidator(response.getValidator(), projection != null);
+        if (sendIfNotModified(exchange, validator)) {
+            return;
+        }
+        if (projection != null) {
+            String json = ODataJsonTransformer.toJson(response.getBody(), projection);
+            sendSuccessResponse(exchange, json, validator, "application/json", 200);
         } else {
-            sendErrorResponse(exchange, 404, "Not Found: The resource to update does not exist.");
+            sendSuccessResponse(exchange, response.getBody(), validator, "application/xml", 200);
+        }
+    }
+
+    /** Tells the browser that SAP was unreachable and it is looking at cached data. */
+    private static void markIfStale(HttpExchange exchange, ODataResponse response) {
+        if (response.isStale()) {
+            exchange.getResponseHeaders().set("Warning", ApiClient.STALE_WARNING);
+        }
+    }
+
+    /**
+     * Pipes the SAP body straight to the browser through a pooled buffer. The upstream
+     * Content-Length is forwarded when known; otherwise the response is sent chunked.
+     * With a projection the XML is transformed to JSON on the fly, which is always chunked.
+     * Feeds have no validator without reading the whole body, so only order headers can be
+     * answered with 304 here.
+     */
+    private void streamODataResponse(HttpExchange exchange, ODataStream stream, Set<String> projection) throws IOException {
+        try (InputStream in = stream.getBody()) {
+            String validator = formatValidator(stream.getETag(), projection != null);
+            if (sendIfNotModified(exchange, validator)) {
+                return;
+            }
+            exchange.getResponseHeaders().set("Access-Control-Expose-Headers", "ETag");
+            if (validator != null) {
+                exchange.getResponseHeaders().set("ETag", validator);
+            }
+
+            if (projection != null) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                boolean gzip = startCompression(exchange, -1);
+                exchange.sendResponseHeaders(200, 0);
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(responseBody(exchange, gzip), StandardCharsets.UTF_8))) {
+                    ODataJsonTransformer.transform(in, writer, projection);
+                }
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", stream.getContentType());
+            long contentLength = stream.getContentLength();
+            if (contentLength == 0) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            boolean gzip = startCompression(exchange, contentLength);
+            // For sendResponseHeaders, 0 means chunked and -1 means no body.
+            exchange.sendResponseHeaders(200, contentLength < 0 || gzip ? 0 : contentLength);
+
+            byte[] buffer = BUFFER_POOL.acquire();
+            try (OutputStream os = responseBody(exchange, gzip)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    os.write(buffer, 0, read);
+                }
+            } finally {
+                BUFFER_POOL.release(buffer);
+            }
         }
     }
 
+    /**
+     * PATCH/MERGE with {@code {"PurchaseOrderByCustomer":"...","etag":"..."}}. Only these two
+     * fields are read, straight from the request stream.
+     */
+    private void handleUpdate(HttpExchange exchange, Router.Match<RouteHandler> match) throws IOException {
+        String orderId = match.param(0);
+        Map<String, String> fields;
+        try {
+            fields = JsonBodyReader.readFields(exchange.getRequestBody(), MAX_UPDATE_BODY_BYTES, UPDATE_FIELDS);
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(exchange, 400, "Bad Request: " + e.getMessage());
+            return;
+        }
+        String newPurchaseOrder = fields.get("PurchaseOrderByCustomer");
+        String etag = fields.get("etag");
+        if (newPurchaseOrder == null || etag == null) {
+            sendErrorResponse(exchange, 400, "Bad Request: PurchaseOrderByCustomer and etag are required.");
+            return;
+        }
+        if (wantsAsync(exchange)) {
+            submitAsync(exchange, AsyncWriteQueue.UPDATE, orderId, null, etag, newPurchaseOrder);
+            return;
+        }
+        AsyncLogger.debug("Updating order " + orderId + " to purchase order " + newPurchaseOrder);
+        respondWhenDone(exchange, afterWrite(orderId, client().updateSalesOrderAsync(orderId, newPurchaseOrder, etag)),
+                (ex, ignored) -> ex.sendResponseHeaders(204, -1));
+    }
+
     //*****************************
-    private void handlePostRequest(HttpExchange exchange) throws IOException, InterruptedException {
-        String path = exchange.getRequestURI().getPath();
+    private void handleCreate(HttpExchange exchange, Router.Match<RouteHandler> match) throws IOException {
+        // The payload is passed to SAP as it is, so it is read whole rather than parsed.
+        String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        if (wantsAsync(exchange)) {
+            try {
+                new JSONObject(requestBody);
+            } catch (JSONException e) {
+                sendErrorResponse(exchange, 400, "Bad Request: the order must be a JSON object.");
+                return;
+            }
+            submitAsync(exchange, AsyncWriteQueue.CREATE, null, null, null, requestBody);
+            return;
+        }
+
+        // Respond with 201 Created and the new entity
+        CompletableFuture<String> create = client().createSalesOrderAsync(requestBody);
+        create.thenAccept(responseBody -> orderCreated(SalesOrderBulkUpload.salesOrderNumber(responseBody), requestBody));
+        respondWhenDone(exchange, create,
+                (ex, responseBody) -> sendSuccessResponse(ex, responseBody, "application/json", 201));
+    }
+    
+    /**
+     * POST /api/sales-orders/bulk takes a JSON array or NDJSON of order payloads and answers
+     * with NDJSON: one line per order as soon as SAP has answered it
+     * ({@code {"index":0,"status":201,"SalesOrder":"..."}} or {@code {"index":1,"status":400,"error":"..."}}),
+     * then a summary line. With {@code ?mode=batch} the orders are grouped into $batch requests.
+     * If the browser disconnects, the remaining orders are still submitted.
+     */
+    private void handleBulkCreate(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange, bulkMaxBytes);
+        if (body == null) {
+            sendErrorResponse(exchange, 413, "Payload Too Large: at most " + bulkMaxBytes + " bytes per upload.");
+            return;
+        }
+        String requestBody = new String(body, StandardCharsets.UTF_8);
+        List<String> orders;
+        try {
+            orders = SalesOrderBulkUpload.parseOrders(requestBody, bulkMaxOrders);
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(exchange, 400, "Bad Request: " + e.getMessage());
+            return;
+        }
+        String query = exchange.getRequestURI().getQuery();
+        boolean batchMode = query != null && Arrays.asList(query.split("&")).contains("mode=batch");
 
-        if (path.equals("/api/sales-orders")) {
-            InputStream is = exchange.getRequestBody();
-            String requestBody = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+        SalesOrderBulkUpload upload = new SalesOrderBulkUpload(client(), orders, bulkParallelism,
+                batchMode ? bulkBatchSize : 1, (index, status, salesOrder, error) -> {
+                    JSONObject line = new JSONObject().put("index", index).put("status", status);
+                    if (error == null) {
+                        line.put("SalesOrder", salesOrder != null ? salesOrder : JSONObject.NULL);
+                        orderCreated(salesOrder, orders.get(index));
+                    } else {
+                        line.put("error", error);
+                    }
+                    writeLine(writer, line.toString());
+                });
+        respondWhenDone(exchange, upload.start(), (ex, summary) -> {
+            writeLine(writer, summary.put("done", true).toString());
+            writer.close();
+        });
+    }
 
-            String responseBody = apiClient.createSalesOrder(requestBody);
+    /**
+     * Reads the request body, but never more than {@code maxBytes} of it, so an oversized upload
+     * is refused before it fills the heap. Null if the body is longer.
+     */
+    private static byte[] readBody(HttpExchange exchange, int maxBytes) throws IOException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            if (contentLength != null && Long.parseLong(contentLength.trim()) > maxBytes) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            // Not trusted anyway; the read below enforces the limit.
+        }
+        byte[] body = exchange.getRequestBody().readNBytes((int) Math.min(Integer.MAX_VALUE, maxBytes + 1L));
+        return body.length > maxBytes ? null : body;
+    }
 
-            // Respond with 201 Created and the new entity
-            sendSuccessResponse(exchange, responseBody, "application/json", 201);
-        } else {
-            sendErrorResponse(exchange, 404, "Not Found: This endpoint does not support POST.");
+    /** Writes one NDJSON line and pushes it to the browser; a browser that went away is ignored. */
+    private static void writeLine(Writer writer, String line) {
+        synchronized (writer) {
+            try {
+                writer.write(line);
+                writer.write('\n');
+                writer.flush();
+            } catch (IOException e) {
+                AsyncLogger.debug("Could not write bulk result: " + e.getMessage());
+            }
         }
     }
     
     //**************************************
     
-    private void handleDeleteRequest(HttpExchange exchange) throws IOException, InterruptedException {
-        String path = exchange.getRequestURI().getPath();
-        Matcher matcher = ORDER_ITEM_PATTERN.matcher(path);
+    private void handleDeleteItem(HttpExchange exchange, Router.Match<RouteHandler> match) throws IOException {
+        String orderId = match.param(0);
+        String itemId = match.param(1);
+        // The ETag is sent in the 'If-Match' header by the frontend.
+        String etag = exchange.getRequestHeaders().getFirst("If-Match");
+        if (wantsAsync(exchange)) {
+            submitAsync(exchange, AsyncWriteQueue.DELETE_ITEM, orderId, itemId, etag, null);
+            return;
+        }
 
-        if (matcher.find()) {
-            String orderId = matcher.group(1);
-            String itemId = matcher.group(2);
-            // The ETag is sent in the 'If-Match' header by the frontend.
-            String etag = exchange.getRequestHeaders().getFirst("If-Match");
+        // Respond with 204 No Content on successful deletion.
+        respondWhenDone(exchange, afterWrite(orderId, client().deleteSalesOrderItemAsync(orderId, itemId, etag)),
+                (ex, ignored) -> ex.sendResponseHeaders(204, -1));
+    }
 
-            apiClient.deleteSalesOrderItem(orderId, itemId, etag);
+    /** DELETE /api/sales-order/{id}/items?items=10,20 removes several items in one change set. */
+    private void handleDeleteItems(HttpExchange exchange, Router.Match<RouteHandler> match) throws IOException {
+        String orderId = match.param(0);
+        String etag = exchange.getRequestHeaders().getFirst("If-Match");
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null || !query.startsWith("items=")) {
+            sendErrorResponse(exchange, 400, "Bad Request: the 'items' query parameter is required.");
+            return;
+        }
+        List<String> itemIds = Arrays.asList(query.substring("items=".length()).split(","));
+        if (!itemIds.stream().allMatch(id -> id.matches("\\d+"))) {
+            sendErrorResponse(exchange, 400, "Bad Request: item IDs must be numeric.");
+            return;
+        }
 
-            // Respond with 204 No Content on successful deletion.
-            exchange.sendResponseHeaders(204, -1);
+        respondWhenDone(exchange, afterWrite(orderId, client().deleteSalesOrderItemsAsync(orderId, itemIds, etag)),
+                (ex, ignored) -> ex.sendResponseHeaders(204, -1));
+    }
+    
+    /**
+     * Completes the exchange once the upstream call finishes, on the thread that finished it.
+     * The handler thread returns immediately and can take the next request.
+     */
+    private <T> void respondWhenDone(HttpExchange exchange, CompletableFuture<T> future, ResponseWriter<T> writer) {
+        RequestState state = currentRequest.get();
+        currentRequest.remove();
+        // The /api/ limit counts the request until it is answered, not only while it is dispatched.
+        Runnable releasePermit = ConcurrencyLimitHandler.takePermit();
+        future.whenComplete((result, error) -> {
+            try {
+                if (error != null) {
+                    sendFailureResponse(exchange, state, unwrap(error));
+                } else {
+                    writer.write(exchange, result);
+                }
+            } catch (IOException e) {
+                // The browser has most likely gone away; nothing left to answer.
+                AsyncLogger.debug("Could not write response: " + e.getMessage());
+            } finally {
+                exchange.close();
+                releasePermit.run();
+                recordRoute(exchange, state);
+            }
+        });
+    }
+
+    private void sendFailureResponse(HttpExchange exchange, RequestState state, Throwable error) throws IOException {
+        if (sessions != null && error instanceof UpstreamStatusException && ((UpstreamStatusException) error).getStatusCode() == 401) {
+            // SAP rejected the user's credentials: drop the session and let the browser ask again.
+            sessions.remove(state.client);
+            sendAuthenticationChallenge(exchange);
+        } else if (error instanceof UpstreamBusyException) {
+            long retryAfter = error instanceof CircuitOpenException ? ((CircuitOpenException) error).getRetryAfterSeconds() : 1;
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+            sendErrorResponse(exchange, 503, "Service Unavailable: " + error.getMessage());
+        } else if (error instanceof HttpTimeoutException) {
+            sendErrorResponse(exchange, 504, "Gateway Timeout: SAP did not answer in time.");
         } else {
-            sendErrorResponse(exchange, 404, "Not Found: The item to delete does not exist or the URL is malformed.");
+            AsyncLogger.error("SAP call for " + exchange.getRequestURI().getPath() + " failed", error);
+            sendErrorResponse(exchange, 500, "Internal server error: " + error.getMessage());
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
         }
+        return error;
+    }
+    
+    private static String cacheStatsJson(ApiClient apiClient) {
+        ODataResponseCache cache = apiClient.getResponseCache();
+        JSONObject stats = new JSONObject();
+        stats.put("hits", cache.getHits());
+        stats.put("misses", cache.getMisses());
+        stats.put("revalidations", cache.getRevalidations());
+        stats.put("evictions", cache.getEvictions());
+        stats.put("size", cache.size());
+        stats.put("upstreamGets", apiClient.getUpstreamGets().getExecuted());
+        stats.put("coalesced", apiClient.getUpstreamGets().getCoalesced());
+        return stats.toString();
     }
     
     //*****************************
     
     private void sendSuccessResponse(HttpExchange exchange, String body, String contentType, int statusCode) throws IOException {
-        byte[] responseBytes = body.getBytes("UTF-8");
-
+        sendSuccessResponse(exchange, body, null, contentType, statusCode);
+    }
+    
+    private void sendSuccessResponse(HttpExchange exchange, String body, String etag, String contentType, int statusCode) throws IOException {
         // FIX #1: Add the "customs declaration" to expose the ETag header to the browser.
-        exchange.getResponseHeaders().set("Access-Control-Expose-Headers", "ETag");
+        exchange.getResponseHeaders().set("Access-Control-Expose-Headers", "ETag, Warning");
 
-        // FIX #2: If the ApiClient captured an ETag, add it to the response headers for the browser.
-        if (apiClient.getLastETag() != null) {
-            exchange.getResponseHeaders().set("ETag", apiClient.getLastETag());
+        // FIX #2: If SAP sent an ETag for this response, add it to the response headers for the browser.
+        if (etag != null) {
+            exchange.getResponseHeaders().set("ETag", etag);
         }
         
         exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
         
+        // A String has at least as many bytes as chars, so its length is enough for the threshold.
+        if (startCompression(exchange, body.length())) {
+            exchange.sendResponseHeaders(statusCode, 0);
+            // Encoded and compressed in small steps, without a byte[] copy of the whole body.
+            try (Writer writer = new OutputStreamWriter(responseBody(exchange, true), StandardCharsets.UTF_8)) {
+                writer.write(body);
+            }
+            return;
+        }
+        byte[] responseBytes = body.getBytes(StandardCharsets.UTF_8);
+
         // FIX #3: Use the provided statusCode instead of hardcoding 200.
         exchange.sendResponseHeaders(statusCode, responseBytes.length > 0 ? responseBytes.length : -1);
         
@@ -153,6 +912,78 @@ public class ApiHandler implements HttpHandler {
         }
     }
     
+    /**
+     * Decides whether a body of {@code length} bytes (-1 if not known yet) is sent gzipped and
+     * sets the headers for it. Small bodies are not worth the CPU and the gzip framing.
+     * Call before sendResponseHeaders, with 0 (chunked) as the length when it returns true.
+     */
+    private boolean startCompression(HttpExchange exchange, long length) {
+        if (gzipMinBytes < 0 || length == 0 || (length > 0 && length < gzipMinBytes)) {
+            return false;
+        }
+        addVary(exchange, "Accept-Encoding");
+        if (!StaticHandler.acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+            return false;
+        }
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        return true;
+    }
+
+    /** The response body, compressed on the fly when {@link #startCompression} said so. */
+    private static OutputStream responseBody(HttpExchange exchange, boolean gzip) throws IOException {
+        OutputStream out = exchange.getResponseBody();
+        return gzip ? new GZIPOutputStream(out, GZIP_BUFFER_BYTES) : out;
+    }
+
+    /**
+     * Answers 304 Not Modified, without a body, if the browser's If-None-Match names
+     * {@code validator}. Call it before the body is transformed, so a repeat view costs
+     * neither the serialization nor the transfer. Returns false if the full response is due.
+     */
+    private boolean sendIfNotModified(HttpExchange exchange, String validator) throws IOException {
+        if (validator == null) {
+            return false;
+        }
+        // Per-user data: the browser may keep a copy, but has to revalidate it on every use.
+        exchange.getResponseHeaders().set("Cache-Control", "private, no-cache");
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch == null || !matchesAny(ifNoneMatch, validator)) {
+            return false;
+        }
+        exchange.getResponseHeaders().set("Access-Control-Expose-Headers", "ETag, Warning");
+        exchange.getResponseHeaders().set("ETag", validator);
+        if (gzipMinBytes >= 0) {
+            addVary(exchange, "Accept-Encoding");
+        }
+        exchange.sendResponseHeaders(304, -1);
+        return true;
+    }
+
+    /** Adds {@code header} to the response's Vary list unless it is already there. */
+    private static void addVary(HttpExchange exchange, String header) {
+        String vary = exchange.getResponseHeaders().getFirst("Vary");
+        if (vary == null) {
+            exchange.getResponseHeaders().set("Vary", header);
+        } else if (!Arrays.asList(vary.split(",\\s*")).contains(header)) {
+            exchange.getResponseHeaders().set("Vary", vary + ", " + header);
+        }
+    }
+
+    /** Weak comparison, as If-None-Match requires: "W/" prefixes are ignored. */
+    private static boolean matchesAny(String ifNoneMatch, String validator) {
+        String opaque = validator.startsWith("W/") ? validator.substring(2) : validator;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     private void sendErrorResponse(HttpExchange exchange, int statusCode, String message) throws IOException {
         byte[] responseBytes = message.getBytes("UTF-8");
         exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
@@ -0,0 +1,143 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small logger that keeps console I/O off the request threads. Callers only put a record
+ * into a bounded queue; a background thread formats the records and writes them to
+ * standard output in batches. When the queue is full, records are dropped and counted
+ * rather than slowing the request down.
+ *
+ * The level is set with {@code portal.log.level} (DEBUG, INFO, WARN or ERROR, default INFO).
+ * Per-request messages are logged at DEBUG.
+ */
+public final class AsyncLogger {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final class Record {
+        final long timestamp = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Level level;
+        final String message;
+        final Throwable error;
+
+        Record(Level level, String message, Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    private static final Level LEVEL = Level.valueOf(
+            System.getProperty("portal.log.level", "INFO").toUpperCase(Locale.ROOT));
+    private static final BlockingQueue<Record> QUEUE =
+            new ArrayBlockingQueue<>(Integer.getInteger("portal.log.queueSize", 8192));
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final AtomicLong ACCEPTED = new AtomicLong();
+    private static final AtomicLong WRITTEN = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(AsyncLogger::writeLoop, "portal-logger");
+        writer.setDaemon(true);
+        writer.start();
+        Metrics.gauge("portal_log_dropped_total", "Log records dropped because the log queue was full.", DROPPED::sum);
+    }
+
+    private AsyncLogger() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    private static void log(Level level, String message, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (QUEUE.offer(new Record(level, message, error))) {
+            ACCEPTED.incrementAndGet();
+        } else {
+            DROPPED.increment();
+        }
+    }
+
+    /** Waits until everything logged so far has been written, e.g. before the JVM exits. */
+    public static void flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long target = ACCEPTED.get();
+        while (WRITTEN.get() < target && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void writeLoop() {
+        List<Record> batch = new ArrayList<>(256);
+        StringBuilder out = new StringBuilder(8192);
+        while (true) {
+            try {
+                Record first = QUEUE.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                QUEUE.drainTo(batch, 255);
+                for (Record record : batch) {
+                    format(record, out);
+                }
+                System.out.print(out);
+                System.out.flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // Never let a bad record stop the logger.
+                e.printStackTrace();
+            } finally {
+                WRITTEN.addAndGet(batch.size());
+                batch.clear();
+                out.setLength(0);
+            }
+        }
+    }
+
+    private static void format(Record record, StringBuilder out) {
+        out.append(Instant.ofEpochMilli(record.timestamp)).append(' ')
+                .append(record.level).append(' ')
+                .append('[').append(record.thread).append("] ")
+                .append(record.message).append(System.lineSeparator());
+        if (record.error != null) {
+            StringWriter trace = new StringWriter();
+            record.error.printStackTrace(new PrintWriter(trace));
+            out.append(trace);
+        }
+    }
+}
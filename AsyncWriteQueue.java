@@ -0,0 +1,365 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.json.JSONObject;
+
+/**
+ * Accepts order changes while SAP is slow or down and applies them later, so the browser
+ * does not wait for the Gateway. Every change is first appended to a {@link WriteAheadLog}
+ * and then replayed to SAP one at a time, in the order it was accepted, with the ETag the
+ * user edited against and the client's usual CSRF handling.
+ *
+ * Replays that fail because SAP is unreachable or busy are retried with a growing delay;
+ * every other answer is final. After a restart the log is read back and unfinished changes
+ * are queued again. A change that was already on its way to SAP when the portal stopped is
+ * "in doubt": updates and deletes are safe to resend because their ETag or a 404 reveals
+ * whether they were applied, but a create is not resent and is reported as {@code unknown}.
+ */
+public class AsyncWriteQueue {
+
+    public static final String CREATE = "create";
+    public static final String UPDATE = "update";
+    public static final String DELETE_ITEM = "delete_item";
+
+    public enum State { PENDING, DONE, FAILED, UNKNOWN }
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 60_000;
+    private static final int MAX_RETAINED = 10_000;
+
+    /** One accepted change. Its outcome fields are only written by the replay thread. */
+    public static final class Write {
+        final long id;
+        final String operation;
+        final String orderId;
+        final String itemId;
+        final String etag;
+        final String body;
+        final long submittedAt;
+
+        volatile State state = State.PENDING;
+        volatile int attempts;
+        volatile boolean inDoubt;
+        volatile int status;
+        volatile String error;
+        volatile String salesOrder;
+        volatile long completedAt;
+        long retryAt;
+
+        Write(long id, String operation, String orderId, String itemId, String etag, String body, long submittedAt) {
+            this.id = id;
+            this.operation = operation;
+            this.orderId = orderId;
+            this.itemId = itemId;
+            this.etag = etag;
+            this.body = body;
+            this.submittedAt = submittedAt;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getOrderId() {
+            return orderId;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /** The number SAP gave a created order, once it is done. */
+        public String getSalesOrder() {
+            return salesOrder;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        /** The status as shown to the browser. */
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject()
+                    .put("id", id)
+                    .put("operation", operation)
+                    .put("state", state.name().toLowerCase(Locale.ROOT))
+                    .put("attempts", attempts)
+                    .put("submittedAt", Instant.ofEpochMilli(submittedAt).toString());
+            json.putOpt("orderId", orderId);
+            json.putOpt("itemId", itemId);
+            json.putOpt("salesOrder", salesOrder);
+            json.putOpt("error", error);
+            if (status != 0) {
+                json.put("status", status);
+            }
+            if (completedAt != 0) {
+                json.put("completedAt", Instant.ofEpochMilli(completedAt).toString());
+            }
+            return json;
+        }
+
+        JSONObject toRecord() {
+            return new JSONObject().put("t", "submit").put("id", id).put("op", operation)
+                    .putOpt("orderId", orderId).putOpt("itemId", itemId).putOpt("etag", etag)
+                    .putOpt("body", body).put("at", submittedAt);
+        }
+
+        static Write fromRecord(JSONObject record) {
+            return new Write(record.getLong("id"), record.getString("op"), record.optString("orderId", null),
+                    record.optString("itemId", null), record.optString("etag", null), record.optString("body", null),
+                    record.getLong("at"));
+        }
+    }
+
+    private final ApiClient apiClient;
+    private final WriteAheadLog log;
+    private final Consumer<Write> listener;
+    private final long compactBytes;
+    private final ScheduledExecutorService worker;
+    private final Queue<Write> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong lastId = new AtomicLong();
+    // Recent writes by ID for the status endpoint; pending ones are never evicted. Guarded by this.
+    private final Map<Long, Write> writes = new LinkedHashMap<Long, Write>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Write> eldest) {
+            return size() > MAX_RETAINED && eldest.getValue().state != State.PENDING;
+        }
+    };
+
+    // Only touched by the worker thread.
+    private boolean replaying;
+
+    /**
+     * @param listener called on the replay thread whenever a write reaches its final state
+     * @param compactBytes the log is emptied once nothing is pending and it has grown past this size
+     */
+    public AsyncWriteQueue(ApiClient apiClient, WriteAheadLog log, Consumer<Write> listener, long compactBytes) {
+        this.apiClient = apiClient;
+        this.log = log;
+        this.listener = listener;
+        this.compactBytes = compactBytes;
+        this.worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "portal-write-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Re-queues what the log says is unfinished and starts replaying. Call before accepting
+     * new writes, so recovered ones keep their place in front of them.
+     */
+    public void start() {
+        recover();
+        worker.execute(this::replayNext);
+    }
+
+    /**
+     * Records the change durably and queues it for SAP.
+     *
+     * @throws IOException if it could not be written to the log; the change was not accepted
+     */
+    public Write submit(String operation, String orderId, String itemId, String etag, String body) throws IOException {
+        long id = lastId.updateAndGet(previous -> Math.max(previous + 1, System.currentTimeMillis()));
+        Write write = new Write(id, operation, orderId, itemId, etag, body, System.currentTimeMillis());
+        // One lock for log and queue, so replay order is the order in the log.
+        synchronized (this) {
+            log.append(write.toRecord());
+            writes.put(id, write);
+            pending.add(write);
+        }
+        worker.execute(this::replayNext);
+        return write;
+    }
+
+    public synchronized Write get(long id) {
+        return writes.get(id);
+    }
+
+    /** Writes not yet applied, oldest first. */
+    public List<Write> getPending() {
+        return new ArrayList<>(pending);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private void recover() {
+        Map<Long, Write> recovered = new LinkedHashMap<>();
+        for (JSONObject record : log.getRecoveredRecords()) {
+            long id = record.getLong("id");
+            lastId.accumulateAndGet(id, Math::max);
+            Write write = recovered.get(id);
+            switch (record.getString("t")) {
+                case "submit":
+                    recovered.put(id, Write.fromRecord(record));
+                    break;
+                case "attempt":
+                    if (write != null) {
+                        write.attempts++;
+                        write.inDoubt = true;
+                    }
+                    break;
+                case "result":
+                    if (write != null) {
+                        write.state = State.valueOf(record.getString("state"));
+                        write.status = record.optInt("status");
+                        write.error = record.optString("error", null);
+                        write.salesOrder = record.optString("salesOrder", null);
+                        write.completedAt = record.optLong("at");
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        int requeued = 0;
+        for (Write write : recovered.values()) {
+            synchronized (this) {
+                writes.put(write.id, write);
+            }
+            if (write.state != State.PENDING) {
+                continue;
+            }
+            if (CREATE.equals(write.operation) && write.inDoubt) {
+                complete(write, State.UNKNOWN, 0, "The portal stopped while SAP was creating this order; check whether it exists before creating it again.");
+            } else {
+                pending.add(write);
+                requeued++;
+            }
+        }
+        if (requeued > 0) {
+            AsyncLogger.info("Recovered " + requeued + " queued SAP writes from " + log.getFile() + ".");
+        }
+    }
+
+    /** Sends the oldest pending write, unless one is already on its way or waiting for a retry. */
+    private void replayNext() {
+        if (replaying) {
+            return;
+        }
+        Write write = pending.peek();
+        if (write == null) {
+            compactIfIdle();
+            return;
+        }
+        long wait = write.retryAt - System.currentTimeMillis();
+        if (wait > 0) {
+            return; // A retry is already scheduled for it.
+        }
+        replaying = true;
+        write.attempts++;
+        try {
+            log.append(new JSONObject().put("t", "attempt").put("id", write.id));
+        } catch (IOException e) {
+            AsyncLogger.error("Could not write to " + log.getFile(), e);
+        }
+        send(write).whenComplete((salesOrder, error) -> worker.execute(() -> {
+            replaying = false;
+            handleOutcome(write, salesOrder, error);
+            replayNext();
+        }));
+    }
+
+    private CompletableFuture<String> send(Write write) {
+        switch (write.operation) {
+            case CREATE:
+                return apiClient.createSalesOrderAsync(write.body).thenApply(SalesOrderBulkUpload::salesOrderNumber);
+            case UPDATE:
+                return apiClient.updateSalesOrderAsync(write.orderId, write.body, write.etag).thenApply(ignored -> null);
+            case DELETE_ITEM:
+                return apiClient.deleteSalesOrderItemAsync(write.orderId, write.itemId, write.etag).thenApply(ignored -> null);
+            default:
+                return CompletableFuture.failedFuture(new IllegalArgumentException("Unknown operation " + write.operation));
+        }
+    }
+
+    private void handleOutcome(Write write, String salesOrder, Throwable error) {
+        if (error == null) {
+            write.salesOrder = salesOrder;
+            complete(write, State.DONE, CREATE.equals(write.operation) ? 201 : 204, null);
+            return;
+        }
+        Throwable cause = SalesOrderBulkUpload.unwrap(error);
+        int status = SalesOrderBulkUpload.statusOf(cause);
+        boolean notSent = cause instanceof UpstreamBusyException || cause instanceof ConnectException
+                || cause instanceof HttpConnectTimeoutException || status == 503;
+        boolean maybeApplied = !notSent && (cause instanceof IOException || status == 502 || status == 504);
+        if (notSent || (maybeApplied && !CREATE.equals(write.operation))) {
+            write.inDoubt |= maybeApplied;
+            long delay = cause instanceof CircuitOpenException
+                    ? ((CircuitOpenException) cause).getRetryAfterSeconds() * 1000
+                    : Math.min(MAX_RETRY_DELAY_MILLIS, 1000L << Math.min(write.attempts - 1, 6));
+            write.retryAt = System.currentTimeMillis() + delay;
+            write.error = SalesOrderBulkUpload.describe(cause);
+            AsyncLogger.info("Queued " + write.operation + " " + write.id + " will be retried in " + delay + " ms: " + write.error);
+            worker.schedule(this::replayNext, delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (maybeApplied) {
+            complete(write, State.UNKNOWN, status, "SAP did not confirm the new order in time; check whether it exists before creating it again.");
+        } else if (write.inDoubt && DELETE_ITEM.equals(write.operation) && status == 404) {
+            // The earlier attempt got through; the item is gone as requested.
+            complete(write, State.DONE, 204, null);
+        } else if (write.inDoubt && status == 412) {
+            complete(write, State.UNKNOWN, status, "The order changed in SAP; this change may already have been saved by an earlier attempt.");
+        } else {
+            complete(write, State.FAILED, status, SalesOrderBulkUpload.describe(cause));
+        }
+    }
+
+    private void complete(Write write, State state, int status, String error) {
+        write.state = state;
+        write.status = status;
+        write.error = error;
+        write.completedAt = System.currentTimeMillis();
+        pending.remove(write);
+        try {
+            log.append(new JSONObject().put("t", "result").put("id", write.id).put("state", state.name())
+                    .put("status", status).putOpt("error", error).putOpt("salesOrder", write.salesOrder)
+                    .put("at", write.completedAt));
+        } catch (IOException e) {
+            // Replayed again after a restart; updates and deletes then end up as 412/404.
+            AsyncLogger.error("Could not write to " + log.getFile(), e);
+        }
+        if (state != State.DONE) {
+            AsyncLogger.warn("Queued " + write.operation + " " + write.id + " ended as " + state + ": " + error);
+        }
+        try {
+            listener.accept(write);
+        } catch (RuntimeException e) {
+            AsyncLogger.error("Write listener failed", e);
+        }
+    }
+
+    private void compactIfIdle() {
+        synchronized (this) {
+            try {
+                if (pending.isEmpty() && log.size() > compactBytes) {
+                    log.clear();
+                    AsyncLogger.debug("Cleared write log " + log.getFile());
+                }
+            } catch (IOException e) {
+                AsyncLogger.error("Could not clear " + log.getFile(), e);
+            }
+        }
+    }
+}
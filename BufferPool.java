@@ -0,0 +1,29 @@
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A small pool of reusable byte buffers for copying response streams, so streaming
+ * a large OData feed does not allocate a fresh buffer per request.
+ */
+public class BufferPool {
+
+    private final ArrayBlockingQueue<byte[]> buffers;
+    private final int bufferSize;
+
+    public BufferPool(int maxPooled, int bufferSize) {
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+        this.bufferSize = bufferSize;
+    }
+
+    /** Returns a pooled buffer, or a new one if the pool is empty. */
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    /** Gives a buffer back; it is dropped if the pool is already full. */
+    public void release(byte[] buffer) {
+        if (buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+}
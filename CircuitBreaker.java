@@ -0,0 +1,176 @@
+/**
+ * Stops sending requests to SAP while the Gateway is failing, so waiting requests do not
+ * pile up on a backend that cannot answer them.
+ *
+ * The breaker looks at the outcome of the last {@code windowSize} calls. When at least
+ * {@code minimumCalls} were made and the share of failures (5xx, timeouts, connection
+ * errors) reaches {@code failureRateThreshold}, it opens: calls fail immediately for
+ * {@code openMillis}. After that one probe call is let through (half-open); if it succeeds
+ * the breaker closes again, otherwise it stays open for another period.
+ *
+ * Each permitted call gets a {@link Permit} to report its outcome with. Only the probe decides
+ * how a half-open breaker goes on, and a call admitted before the breaker last opened or
+ * closed no longer counts: a slow call from the closed period cannot close or reopen it.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** Proof that a call was let through; hand it back with the call's outcome. */
+    public static final class Permit {
+        private final long period;
+        private final boolean probe;
+
+        private Permit(long period, boolean probe) {
+            this.period = period;
+            this.probe = probe;
+        }
+    }
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openMillis;
+
+    // Ring buffer of recent outcomes; true = failure. Guarded by this.
+    private final boolean[] outcomes;
+    private int recorded;
+    private int next;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probeInFlight;
+    private long timesOpened;
+    // Moves whenever the breaker opens or closes; permits from an earlier period are stale.
+    private long period;
+
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long openMillis) {
+        if (windowSize <= 0 || minimumCalls <= 0 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("windowSize and minimumCalls must be positive, minimumCalls <= windowSize");
+        }
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openMillis = openMillis;
+        this.outcomes = new boolean[windowSize];
+    }
+
+    /**
+     * Returns a permit if a call may be made now, null if not. Every permitted call must be
+     * followed by {@link #recordSuccess}, {@link #recordFailure} or {@link #recordIgnored}.
+     */
+    public synchronized Permit tryAcquirePermission() {
+        switch (state) {
+            case CLOSED:
+                return new Permit(period, false);
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return null;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                return new Permit(period, true);
+            default: // HALF_OPEN: only the single probe call is allowed.
+                if (probeInFlight) {
+                    return null;
+                }
+                probeInFlight = true;
+                return new Permit(period, true);
+        }
+    }
+
+    /** True unless the breaker is open and its waiting period has not yet passed. */
+    public synchronized boolean isCallPermitted() {
+        return state == State.CLOSED
+                || (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis)
+                || (state == State.HALF_OPEN && !probeInFlight);
+    }
+
+    public synchronized void recordSuccess(Permit permit) {
+        if (isProbe(permit)) {
+            reset();
+            state = State.CLOSED;
+            period++;
+            AsyncLogger.info("SAP circuit breaker closed again.");
+        } else if (isCurrentClosedCall(permit)) {
+            record(false);
+        }
+    }
+
+    public synchronized void recordFailure(Permit permit) {
+        if (isProbe(permit)) {
+            open();
+        } else if (isCurrentClosedCall(permit)) {
+            record(true);
+            if (recorded >= minimumCalls && (double) failures / recorded >= failureRateThreshold) {
+                open();
+            }
+        }
+    }
+
+    /** For a permitted call whose outcome says nothing about SAP's health, e.g. a cancelled one. */
+    public synchronized void recordIgnored(Permit permit) {
+        if (isProbe(permit)) {
+            probeInFlight = false;
+        }
+    }
+
+    /** The probe of the current half-open period. */
+    private boolean isProbe(Permit permit) {
+        return permit.probe && state == State.HALF_OPEN && permit.period == period;
+    }
+
+    private boolean isCurrentClosedCall(Permit permit) {
+        return !permit.probe && state == State.CLOSED && permit.period == period;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getTimesOpened() {
+        return timesOpened;
+    }
+
+    /** Seconds until a probe call will be let through, at least 1 while open; 0 when not open. */
+    public synchronized long getRetryAfterSeconds() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        long remaining = openMillis - (System.currentTimeMillis() - openedAt);
+        return Math.max(1, (remaining + 999) / 1000);
+    }
+
+    private void record(boolean failure) {
+        if (recorded == windowSize) {
+            if (outcomes[next]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        outcomes[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % windowSize;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        period++;
+        openedAt = System.currentTimeMillis();
+        probeInFlight = false;
+        timesOpened++;
+        reset();
+        AsyncLogger.warn("SAP circuit breaker opened; failing fast for " + openMillis + " ms.");
+    }
+
+    private void reset() {
+        recorded = 0;
+        next = 0;
+        failures = 0;
+        probeInFlight = false;
+    }
+}
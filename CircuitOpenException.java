@@ -0,0 +1,20 @@
+/**
+ * Thrown instead of calling SAP while the {@link CircuitBreaker} is open. It is an
+ * {@link UpstreamBusyException}, so the browser gets 503, with Retry-After set to the
+ * time left until the breaker lets a probe call through.
+ */
+public class CircuitOpenException extends UpstreamBusyException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterSeconds;
+
+    public CircuitOpenException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
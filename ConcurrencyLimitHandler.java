@@ -0,0 +1,90 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Wraps a handler and caps how many exchanges it may process at the same time.
+ * A request that cannot get a permit within the wait time is answered with
+ * 503 so one busy context (e.g. a slow SAP call under /api/) cannot starve the others.
+ *
+ * The permit is returned when the delegate returns, unless the delegate answers later
+ * from another thread: then it takes the permit with {@link #takePermit()} and returns
+ * it once the exchange is complete, so the limit counts requests in flight.
+ */
+public class ConcurrencyLimitHandler implements HttpHandler {
+
+    // The release of the permit held by the exchange being dispatched on this thread.
+    private static final ThreadLocal<Runnable> currentPermit = new ThreadLocal<>();
+
+    private final HttpHandler delegate;
+    private final Semaphore permits;
+    private final long maxWaitMillis;
+
+    public ConcurrencyLimitHandler(HttpHandler delegate, int maxConcurrent, long maxWaitMillis) {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        }
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+
+        if (!acquired) {
+            sendBusyResponse(exchange);
+            return;
+        }
+
+        AtomicBoolean released = new AtomicBoolean();
+        currentPermit.set(() -> {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        });
+        try {
+            delegate.handle(exchange);
+        } finally {
+            // Null if the delegate took the permit over.
+            Runnable release = currentPermit.get();
+            currentPermit.remove();
+            if (release != null) {
+                release.run();
+            }
+        }
+    }
+
+    /**
+     * Takes over the permit of the exchange being dispatched on this thread, for a handler that
+     * answers asynchronously. The caller must run the returned action once the exchange is
+     * complete. Returns a no-op when the exchange holds no permit.
+     */
+    public static Runnable takePermit() {
+        Runnable release = currentPermit.get();
+        currentPermit.remove();
+        return release != null ? release : () -> { };
+    }
+
+    private void sendBusyResponse(HttpExchange exchange) throws IOException {
+        byte[] responseBytes = "503 - Server Busy, please retry".getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        exchange.sendResponseHeaders(503, responseBytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(responseBytes);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Reads selected top-level fields of a small JSON object straight from a request body.
+ *
+ * Unlike {@code new JSONObject(new String(body.readAllBytes()))} this does not copy the body
+ * into a byte array, a String and a tree of objects first: it decodes the UTF-8 bytes as they
+ * arrive through a 128-byte buffer, keeps the values of the wanted fields and skips the rest,
+ * nested objects and arrays included. Numbers, booleans and strings are returned as text;
+ * {@code null} values are left out.
+ *
+ * Malformed JSON and bodies longer than {@code maxBytes} are rejected with an
+ * {@link IllegalArgumentException}, which callers answer with 400.
+ */
+public final class JsonBodyReader {
+
+    // Enough for a typical update in one read; longer bodies just take more reads.
+    private static final int BUFFER_BYTES = 128;
+    private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9]\\d*)(\\.\\d+)?([eE][+-]?\\d+)?");
+
+    private final InputStream in;
+    private final long maxBytes;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    private long consumed;
+    private final StringBuilder text = new StringBuilder(64);
+
+    private JsonBodyReader(InputStream in, long maxBytes) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+        this.buffer = new byte[(int) Math.min(BUFFER_BYTES, Math.max(16, maxBytes))];
+    }
+
+    /** Returns the values of {@code fields} found in the JSON object read from {@code in}. */
+    public static Map<String, String> readFields(InputStream in, long maxBytes, Set<String> fields) throws IOException {
+        JsonBodyReader reader = new JsonBodyReader(in, maxBytes);
+        Map<String, String> values = new HashMap<>();
+        reader.expect('{');
+        int c = reader.nextClean();
+        if (c != '}') {
+            while (true) {
+                if (c != '"') {
+                    throw reader.error("expected a field name");
+                }
+                String name = reader.readString();
+                reader.expect(':');
+                if (fields.contains(name)) {
+                    String value = reader.readValue();
+                    if (value != null) {
+                        values.put(name, value);
+                    }
+                } else {
+                    reader.skipValue(0);
+                }
+                c = reader.nextClean();
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    throw reader.error("expected ',' or '}'");
+                }
+                c = reader.nextClean();
+            }
+        }
+        if (reader.nextClean() != -1) {
+            throw reader.error("unexpected data after the object");
+        }
+        return values;
+    }
+
+    /** A string, number or boolean as text; null for JSON null. Objects and arrays are not values here. */
+    private String readValue() throws IOException {
+        int c = nextClean();
+        if (c == '"') {
+            return readString();
+        }
+        if (c == '{' || c == '[') {
+            throw error("expected a string, number or boolean");
+        }
+        String literal = readLiteral(c);
+        return literal.equals("null") ? null : literal;
+    }
+
+    private void skipValue(int depth) throws IOException {
+        if (depth > 32) {
+            throw error("nested too deeply");
+        }
+        int c = nextClean();
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            int close = c == '{' ? '}' : ']';
+            c = nextClean();
+            if (c == close) {
+                return;
+            }
+            while (true) {
+                if (close == '}') {
+                    if (c != '"') {
+                        throw error("expected a field name");
+                    }
+                    readString();
+                    expect(':');
+                } else if (c == -1) {
+                    throw error("unterminated array");
+                } else {
+                    // Put the first character of the element back for skipValue().
+                    position--;
+                }
+                skipValue(depth + 1);
+                c = nextClean();
+                if (c == close) {
+                    return;
+                }
+                if (c != ',') {
+                    throw error("expected ',' or '" + (char) close + "'");
+                }
+                c = nextClean();
+            }
+        } else {
+            readLiteral(c);
+        }
+    }
+
+    /** Reads true, false, null or a number, starting with {@code first}. */
+    private String readLiteral(int first) throws IOException {
+        text.setLength(0);
+        int c = first;
+        while (c != -1 && (Character.isLetterOrDigit(c) || c == '-' || c == '+' || c == '.')) {
+            text.append((char) c);
+            c = read();
+        }
+        if (c != -1) {
+            position--;
+        }
+        String literal = text.toString();
+        if (!(literal.equals("true") || literal.equals("false") || literal.equals("null")
+                || NUMBER.matcher(literal).matches())) {
+            throw error("invalid value '" + literal + "'");
+        }
+        return literal;
+    }
+
+    /** Reads the rest of a string whose opening quote was consumed, decoding escapes and UTF-8. */
+    private String readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw error("unterminated string");
+            }
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c == '\\') {
+                int escaped = read();
+                switch (escaped) {
+                    case '"': case '\\': case '/': text.append((char) escaped); break;
+                    case 'b': text.append('\b'); break;
+                    case 'f': text.append('\f'); break;
+                    case 'n': text.append('\n'); break;
+                    case 'r': text.append('\r'); break;
+                    case 't': text.append('\t'); break;
+                    case 'u': text.append((char) (hex() << 12 | hex() << 8 | hex() << 4 | hex())); break;
+                    default: throw error("invalid escape");
+                }
+            } else if (c < 0x20) {
+                throw error("control character in string");
+            } else if (c < 0x80) {
+                text.append((char) c);
+            } else {
+                text.appendCodePoint(utf8(c));
+            }
+        }
+    }
+
+    /** Decodes the rest of a multi-byte UTF-8 sequence that starts with {@code lead}. */
+    private int utf8(int lead) throws IOException {
+        int extra;
+        int codePoint;
+        if ((lead & 0xE0) == 0xC0) {
+            extra = 1;
+            codePoint = lead & 0x1F;
+        } else if ((lead & 0xF0) == 0xE0) {
+            extra = 2;
+            codePoint = lead & 0x0F;
+        } else if ((lead & 0xF8) == 0xF0) {
+            extra = 3;
+            codePoint = lead & 0x07;
+        } else {
+            throw error("invalid UTF-8");
+        }
+        for (int i = 0; i < extra; i++) {
+            int c = read();
+            if (c == -1 || (c & 0xC0) != 0x80) {
+                throw error("invalid UTF-8");
+            }
+            codePoint = codePoint << 6 | (c & 0x3F);
+        }
+        if (codePoint > Character.MAX_CODE_POINT || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+            throw error("invalid UTF-8");
+        }
+        return codePoint;
+    }
+
+    private int hex() throws IOException {
+        int digit = Character.digit(read(), 16);
+        if (digit < 0) {
+            throw error("invalid \\u escape");
+        }
+        return digit;
+    }
+
+    private void expect(char expected) throws IOException {
+        if (nextClean() != expected) {
+            throw error("expected '" + expected + "'");
+        }
+    }
+
+    private int nextClean() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        return c;
+    }
+
+    /** The next byte (0-255), or -1 at the end of the body. */
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+            consumed += limit;
+            if (consumed > maxBytes) {
+                throw new IllegalArgumentException("the request body is larger than " + maxBytes + " bytes.");
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("invalid JSON body: " + message + ".");
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide counters, gauges and latency histograms, rendered in the Prometheus text
+ * format by {@link MetricsHandler}. Recording is lock-free, so it can be called on every
+ * request and every upstream call without measurable cost.
+ *
+ * Series are identified by a metric name and a label string such as
+ * {@code method="GET",route="/api/sales-order/{id}",status="200"}. Labels must come from a small,
+ * fixed set of values (route templates, operation names, status codes), never from raw URLs.
+ */
+public final class Metrics {
+
+    /** Latency of the portal's /api/ routes, labelled by method, route and status. */
+    public static final String HTTP_REQUESTS = "portal_http_request_duration_seconds";
+    /** Latency of calls to SAP, labelled by operation and status. */
+    public static final String UPSTREAM_REQUESTS = "portal_upstream_request_duration_seconds";
+    /** Calls to SAP refused locally by a bulkhead or the open circuit breaker. */
+    public static final String UPSTREAM_REJECTED = "portal_upstream_rejected_total";
+    /** Repeated attempts of idempotent reads after a transient failure. */
+    public static final String UPSTREAM_RETRIES = "portal_upstream_retries_total";
+    /** Expired cache entries served because SAP could not be reached. */
+    public static final String STALE_RESPONSES = "portal_cache_stale_served_total";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final Map<String, String> HELP = new ConcurrentHashMap<>(Map.of(
+            HTTP_REQUESTS, "Time to answer a portal API request.",
+            UPSTREAM_REQUESTS, "Time for a call to the SAP Gateway, including the CSRF token fetch.",
+            UPSTREAM_REJECTED, "Calls to SAP refused locally by a full bulkhead or the open circuit breaker.",
+            UPSTREAM_RETRIES, "Retries of idempotent SAP reads after a transient failure.",
+            STALE_RESPONSES, "Expired cached reads served because SAP could not be reached."));
+
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>> TIMERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static void recordLatency(String name, String labels, long nanos) {
+        TIMERS.computeIfAbsent(name, n -> new ConcurrentHashMap<>())
+                .computeIfAbsent(labels, l -> new LatencyHistogram())
+                .record(nanos);
+    }
+
+    public static void increment(String name, String labels) {
+        COUNTERS.computeIfAbsent(name, n -> new ConcurrentHashMap<>())
+                .computeIfAbsent(labels, l -> new LongAdder())
+                .increment();
+    }
+
+    /** Registers a value read at scrape time; a later registration under the same name replaces it. */
+    public static void gauge(String name, String help, LongSupplier value) {
+        HELP.put(name, help);
+        GAUGES.put(name, value);
+    }
+
+    /** Builds a label string, escaping values as the exposition format requires. */
+    public static String labels(String... namesAndValues) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            if (labels.length() > 0) {
+                labels.append(',');
+            }
+            labels.append(namesAndValues[i]).append("=\"")
+                    .append(namesAndValues[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return labels.toString();
+    }
+
+    /** Renders every series in the Prometheus text exposition format (version 0.0.4). */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, ConcurrentHashMap<String, LatencyHistogram>> timer : new TreeMap<>(TIMERS).entrySet()) {
+            String name = timer.getKey();
+            writeHeader(out, name, "summary");
+            for (Map.Entry<String, LatencyHistogram> series : new TreeMap<>(timer.getValue()).entrySet()) {
+                LatencyHistogram histogram = series.getValue();
+                String labels = series.getKey();
+                for (double quantile : QUANTILES) {
+                    out.append(name).append('{').append(labels).append(labels.isEmpty() ? "" : ",")
+                            .append("quantile=\"").append(quantile).append("\"} ")
+                            .append(seconds(histogram.getValueAtQuantile(quantile))).append('\n');
+                }
+                appendSample(out, name + "_sum", labels, seconds(histogram.getSumMicros()));
+                appendSample(out, name + "_count", labels, String.valueOf(histogram.getCount()));
+            }
+            String maxName = name.replace("_seconds", "_max_seconds");
+            writeHeader(out, maxName, "gauge");
+            for (Map.Entry<String, LatencyHistogram> series : new TreeMap<>(timer.getValue()).entrySet()) {
+                appendSample(out, maxName, series.getKey(), seconds(series.getValue().getMaxMicros()));
+            }
+        }
+        for (Map.Entry<String, ConcurrentHashMap<String, LongAdder>> counter : new TreeMap<>(COUNTERS).entrySet()) {
+            writeHeader(out, counter.getKey(), "counter");
+            for (Map.Entry<String, LongAdder> series : new TreeMap<>(counter.getValue()).entrySet()) {
+                appendSample(out, counter.getKey(), series.getKey(), String.valueOf(series.getValue().sum()));
+            }
+        }
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(GAUGES).entrySet()) {
+            writeHeader(out, gauge.getKey(), gauge.getKey().endsWith("_total") ? "counter" : "gauge");
+            appendSample(out, gauge.getKey(), "", String.valueOf(gauge.getValue().getAsLong()));
+        }
+        return out.toString();
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String type) {
+        String help = HELP.get(name);
+        if (help != null) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        }
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendSample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return String.valueOf(micros / 1_000_000.0);
+    }
+}
@@ -0,0 +1,252 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Builds an OData v2 $batch request (multipart/mixed) and parses the matching response.
+ *
+ * Read operations are sent as individual batch parts. Write operations are grouped into
+ * change sets, which SAP executes atomically: either every request in the change set
+ * succeeds or none of them are applied.
+ */
+public class ODataBatch {
+
+    private static final String CRLF = "\r\n";
+
+    /** One HTTP response taken out of a $batch response. */
+    public static final class Part {
+        private final int statusCode;
+        private final Map<String, String> headers;
+        private final String body;
+
+        public Part(int statusCode, Map<String, String> headers, String body) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /** Header lookup is case-insensitive, as in HTTP. */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+
+    private static final class Operation {
+        final String method;
+        final String relativeUri;
+        final Map<String, String> headers;
+        final String body;
+
+        Operation(String method, String relativeUri, Map<String, String> headers, String body) {
+            this.method = method;
+            this.relativeUri = relativeUri;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    private final String boundary = "batch_" + UUID.randomUUID();
+    // Each element is either a single GET or a change set (list of write operations).
+    private final List<Object> parts = new ArrayList<>();
+    private List<Operation> openChangeSet;
+
+    /** Adds a read, e.g. {@code A_SalesOrder('1')/to_Item}, relative to the service root. */
+    public ODataBatch get(String relativeUri) {
+        openChangeSet = null;
+        parts.add(new Operation("GET", relativeUri, Map.of("Accept", "application/xml"), null));
+        return this;
+    }
+
+    /** Starts a new change set; following write calls are added to it. */
+    public ODataBatch beginChangeSet() {
+        openChangeSet = new ArrayList<>();
+        parts.add(openChangeSet);
+        return this;
+    }
+
+    public ODataBatch post(String relativeUri, String jsonPayload) {
+        return write("POST", relativeUri, null, jsonPayload);
+    }
+
+    public ODataBatch merge(String relativeUri, String etag, String jsonPayload) {
+        return write("MERGE", relativeUri, etag, jsonPayload);
+    }
+
+    public ODataBatch delete(String relativeUri, String etag) {
+        return write("DELETE", relativeUri, etag, null);
+    }
+
+    private ODataBatch write(String method, String relativeUri, String etag, String jsonPayload) {
+        if (openChangeSet == null) {
+            throw new IllegalStateException("Write operations must be added inside a change set.");
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (jsonPayload != null) {
+            headers.put("Content-Type", "application/json");
+            headers.put("Accept", "application/json");
+        }
+        if (etag != null) {
+            headers.put("If-Match", etag);
+        }
+        openChangeSet.add(new Operation(method, relativeUri, headers, jsonPayload));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return parts.isEmpty();
+    }
+
+    /** True if the batch contains no change sets, i.e. only reads. */
+    public boolean isReadOnly() {
+        return parts.stream().allMatch(part -> part instanceof Operation);
+    }
+
+    public String getContentType() {
+        return "multipart/mixed; boundary=" + boundary;
+    }
+
+    @SuppressWarnings("unchecked")
+    public String toRequestBody() {
+        StringBuilder sb = new StringBuilder();
+        for (Object part : parts) {
+            sb.append("--").append(boundary).append(CRLF);
+            if (part instanceof Operation) {
+                appendOperation(sb, (Operation) part);
+            } else {
+                String changeSetBoundary = "changeset_" + UUID.randomUUID();
+                sb.append("Content-Type: multipart/mixed; boundary=").append(changeSetBoundary).append(CRLF);
+                sb.append(CRLF);
+                for (Operation op : (List<Operation>) part) {
+                    sb.append("--").append(changeSetBoundary).append(CRLF);
+                    appendOperation(sb, op);
+                }
+                sb.append("--").append(changeSetBoundary).append("--").append(CRLF);
+                sb.append(CRLF);
+            }
+        }
+        sb.append("--").append(boundary).append("--").append(CRLF);
+        return sb.toString();
+    }
+
+    private static void appendOperation(StringBuilder sb, Operation op) {
+        sb.append("Content-Type: application/http").append(CRLF);
+        sb.append("Content-Transfer-Encoding: binary").append(CRLF);
+        sb.append(CRLF);
+        sb.append(op.method).append(' ').append(op.relativeUri).append(" HTTP/1.1").append(CRLF);
+        for (Map.Entry<String, String> header : op.headers.entrySet()) {
+            sb.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+        }
+        sb.append(CRLF);
+        if (op.body != null) {
+            sb.append(op.body);
+        }
+        sb.append(CRLF);
+    }
+
+    /**
+     * Splits a $batch response into its HTTP responses, in request order.
+     * A change set contributes one part per operation, or a single error part if it failed.
+     */
+    public static List<Part> parseResponse(String contentType, String body) {
+        String responseBoundary = boundaryOf(contentType);
+        if (responseBoundary == null) {
+            throw new IllegalArgumentException("Not a multipart $batch response: " + contentType);
+        }
+        List<Part> result = new ArrayList<>();
+        parseMultipart(normalizeLineEndings(body), responseBoundary, result);
+        return Collections.unmodifiableList(result);
+    }
+
+    private static void parseMultipart(String body, String boundary, List<Part> result) {
+        String delimiter = "--" + boundary;
+        int pos = body.indexOf(delimiter);
+        while (pos >= 0) {
+            int start = pos + delimiter.length();
+            if (body.startsWith("--", start)) {
+                break; // closing delimiter
+            }
+            int next = body.indexOf(delimiter, start);
+            String segment = body.substring(start, next < 0 ? body.length() : next);
+            parseSegment(segment, result);
+            pos = next;
+        }
+    }
+
+    private static void parseSegment(String segment, List<Part> result) {
+        int headerEnd = segment.indexOf("\n\n");
+        if (headerEnd < 0) {
+            return;
+        }
+        Map<String, String> mimeHeaders = parseHeaders(segment.substring(0, headerEnd));
+        String content = segment.substring(headerEnd + 2);
+
+        String partType = mimeHeaders.getOrDefault("content-type", "");
+        if (partType.toLowerCase(Locale.ROOT).startsWith("multipart/mixed")) {
+            parseMultipart(content, boundaryOf(partType), result);
+            return;
+        }
+
+        // An application/http part: status line, headers, blank line, body.
+        int statusEnd = content.indexOf('\n');
+        String statusLine = content.substring(0, statusEnd < 0 ? content.length() : statusEnd).trim();
+        String[] statusTokens = statusLine.split(" ", 3);
+        int statusCode = Integer.parseInt(statusTokens[1]);
+
+        // Prefix the remainder with the status line's newline so a response without
+        // headers still has a blank line in front of its body.
+        String rest = statusEnd < 0 ? "" : content.substring(statusEnd);
+        int bodyStart = rest.indexOf("\n\n");
+        Map<String, String> httpHeaders = parseHeaders(bodyStart < 0 ? rest : rest.substring(0, bodyStart));
+        String httpBody = bodyStart < 0 ? "" : stripTrailingNewlines(rest.substring(bodyStart + 2));
+        result.add(new Part(statusCode, httpHeaders, httpBody));
+    }
+
+    private static Map<String, String> parseHeaders(String block) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String line : block.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static String boundaryOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            String trimmed = param.trim();
+            if (trimmed.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String value = trimmed.substring(9);
+                return value.startsWith("\"") ? value.substring(1, value.length() - 1) : value;
+            }
+        }
+        return null;
+    }
+
+    private static String normalizeLineEndings(String text) {
+        return text.replace("\r\n", "\n");
+    }
+
+    private static String stripTrailingNewlines(String text) {
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == '\n') {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+}
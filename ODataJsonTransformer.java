@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.json.JSONObject;
+
+/**
+ * Turns an OData v2 Atom feed or entry into compact JSON with a streaming StAX parser.
+ * Only the requested properties are emitted and no DOM is built, so the cost grows
+ * with the size of the output rather than with the size of the SAP payload.
+ *
+ * A feed becomes {@code {"results":[{...},...]}}, a single entry becomes {@code {...}}.
+ */
+public class ODataJsonTransformer {
+
+    private static final String METADATA_NS = "http://schemas.microsoft.com/ado/2007/08/dataservices/metadata";
+    private static final String DATA_NS = "http://schemas.microsoft.com/ado/2007/08/dataservices";
+    private static final String ATOM_NS = "http://www.w3.org/2005/Atom";
+
+    /** Paging information found in a feed while transforming it. */
+    public static final class FeedInfo {
+        private long count = -1;
+        private String nextLink;
+
+        /** The $inlinecount total, or -1 if the feed did not carry one. */
+        public long getCount() {
+            return count;
+        }
+
+        /** The href of the server-driven paging link (rel="next"), or null. */
+        public String getNextLink() {
+            return nextLink;
+        }
+    }
+
+    /** Properties shown in the order list. */
+    public static final Set<String> ORDER_LIST_PROPERTIES = Set.of(
+            "SalesOrder", "SalesOrderType", "SalesOrganization");
+
+    /** Properties shown in the order detail panel. */
+    public static final Set<String> ORDER_HEADER_PROPERTIES = Set.of(
+            "SalesOrder", "SalesOrderType", "SalesOrganization", "DistributionChannel",
+            "OrganizationDivision", "SoldToParty", "PurchaseOrderByCustomer",
+            "TotalNetAmount", "TransactionCurrency", "CreatedByUser");
+
+    /** Properties shown on the item cards. */
+    public static final Set<String> ORDER_ITEM_PROPERTIES = Set.of(
+            "SalesOrder", "SalesOrderItem", "Material", "SalesOrderItemText",
+            "RequestedQuantity", "RequestedQuantityUnit", "NetAmount", "TransactionCurrency");
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        // SAP never sends a DTD; refusing them also rules out XXE.
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return factory;
+    }
+
+    public static String toJson(String atomXml, Set<String> properties) {
+        return toJson(atomXml, properties, null);
+    }
+
+    /** Like {@link #toJson(String, Set)}, and also records $inlinecount and the next link in {@code feedInfo}. */
+    public static String toJson(String atomXml, Set<String> properties, FeedInfo feedInfo) {
+        StringBuilder out = new StringBuilder(Math.max(64, atomXml.length() / 8));
+        try {
+            transform(XML_INPUT_FACTORY.createXMLStreamReader(new StringReader(atomXml)), out, properties, feedInfo);
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Invalid OData XML: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // cannot happen with a StringBuilder
+        }
+        return out.toString();
+    }
+
+    /** Transforms straight from an upstream stream into the response writer. */
+    public static void transform(InputStream atomXml, Writer out, Set<String> properties) throws IOException {
+        try {
+            transform(XML_INPUT_FACTORY.createXMLStreamReader(atomXml), out, properties, null);
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid OData XML: " + e.getMessage(), e);
+        }
+    }
+
+    private static void transform(XMLStreamReader reader, Appendable out, Set<String> properties, FeedInfo feedInfo)
+            throws XMLStreamException, IOException {
+        try {
+            boolean isFeed = false;
+            boolean firstEntry = true;
+            boolean rootSeen = false;
+
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                if (!rootSeen) {
+                    rootSeen = true;
+                    isFeed = "feed".equals(reader.getLocalName());
+                    if (isFeed) {
+                        out.append("{\"results\":[");
+                    }
+                }
+                if (feedInfo != null && isFeed) {
+                    if (METADATA_NS.equals(reader.getNamespaceURI()) && "count".equals(reader.getLocalName())) {
+                        feedInfo.count = Long.parseLong(reader.getElementText().trim());
+                        continue;
+                    }
+                    if (ATOM_NS.equals(reader.getNamespaceURI()) && "link".equals(reader.getLocalName())
+                            && "next".equals(reader.getAttributeValue(null, "rel"))) {
+                        feedInfo.nextLink = reader.getAttributeValue(null, "href");
+                        continue;
+                    }
+                }
+                if (METADATA_NS.equals(reader.getNamespaceURI()) && "properties".equals(reader.getLocalName())) {
+                    if (isFeed && !firstEntry) {
+                        out.append(',');
+                    }
+                    firstEntry = false;
+                    writeProperties(reader, out, properties);
+                    if (!isFeed) {
+                        return;
+                    }
+                }
+            }
+            if (isFeed) {
+                out.append("]}");
+            } else if (firstEntry) {
+                out.append("{}");
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Reads the children of one m:properties element and writes the selected ones as a JSON object. */
+    private static void writeProperties(XMLStreamReader reader, Appendable out, Set<String> properties)
+            throws XMLStreamException, IOException {
+        out.append('{');
+        boolean first = true;
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (depth == 1 && DATA_NS.equals(reader.getNamespaceURI()) && properties.contains(name)) {
+                    boolean isNull = "true".equals(reader.getAttributeValue(METADATA_NS, "null"));
+                    String value = reader.getElementText(); // leaves the reader on the END_ELEMENT
+                    if (!first) {
+                        out.append(',');
+                    }
+                    first = false;
+                    out.append(JSONObject.quote(name)).append(':');
+                    out.append(isNull ? "null" : JSONObject.quote(value));
+                } else {
+                    depth++;
+                }
+            }
+        }
+        out.append('}');
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * The result of one OData read: the response body together with the ETag SAP sent for it.
+ * Returned per call so concurrent requests never see each other's ETag.
+ */
+public class ODataResponse {
+
+    private final String body;
+    private final String etag;
+    private final boolean stale;
+    private final String validator;
+
+    public ODataResponse(String body, String etag) {
+        this(body, etag, false);
+    }
+
+    public ODataResponse(String body, String etag, boolean stale) {
+        this(body, etag, stale, etag);
+    }
+
+    public ODataResponse(String body, String etag, boolean stale, String validator) {
+        this.body = body;
+        this.etag = etag;
+        this.stale = stale;
+        this.validator = validator;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    /** The entity ETag, or null if SAP did not send one (e.g. for feeds). */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * The tag the browser revalidates this response with (If-None-Match): the entity ETag,
+     * or a hash of the body for feeds. Null if there is none.
+     */
+    public String getValidator() {
+        return validator;
+    }
+
+    /** True if SAP could not be reached and this is an expired copy from the response cache. */
+    public boolean isStale() {
+        return stale;
+    }
+}
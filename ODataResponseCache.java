@@ -0,0 +1,172 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Bounded, read-through cache for OData GET responses, keyed by the full request URI.
+ * Entries live for a fixed TTL; once stale they are kept so the caller can revalidate
+ * them against SAP with If-None-Match instead of downloading the body again.
+ * Least recently used entries are evicted when the cache is full.
+ *
+ * Every invalidation moves a generation counter. A read takes the generation before it calls
+ * SAP and hands it to {@link #put}; if a write invalidated entries meanwhile, the body may be
+ * from before the write and is not cached.
+ */
+public class ODataResponseCache {
+
+    public static final class Entry {
+        private final String body;
+        private final String etag;
+        private volatile long expiresAt;
+        private volatile String contentTag;
+
+        private Entry(String body, String etag, long expiresAt) {
+            this.body = body;
+            this.etag = etag;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        /**
+         * A weak ETag derived from the body, for feeds that SAP sends without one. Computed once
+         * per entry, so answering repeated conditional requests does not hash the body again.
+         */
+        public String getContentTag() {
+            String tag = contentTag;
+            if (tag == null) {
+                tag = contentTag(body);
+                contentTag = tag;
+            }
+            return tag;
+        }
+    }
+
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong generation = new AtomicLong();
+
+    public ODataResponseCache(int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.ttlMillis = ttlMillis;
+        // accessOrder = true turns the LinkedHashMap into an LRU list.
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** Returns the cached entry (fresh or stale) or null, without touching the counters. */
+    public synchronized Entry get(String uri) {
+        return entries.get(uri);
+    }
+
+    /** Changes whenever entries are invalidated; take it before starting a read. */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the body of a read that started at {@code readGeneration}, unless entries were
+     * invalidated since. The entry is returned either way, for the caller to answer with.
+     */
+    public synchronized Entry put(String uri, String body, String etag, long readGeneration) {
+        Entry entry = new Entry(body, etag, System.currentTimeMillis() + ttlMillis);
+        if (readGeneration == generation.get()) {
+            entries.put(uri, entry);
+        }
+        return entry;
+    }
+
+    /** Marks a stale entry as fresh again after SAP answered 304 Not Modified. */
+    public void markRevalidated(Entry entry) {
+        entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+        revalidations.incrementAndGet();
+    }
+
+    public synchronized void invalidateIf(Predicate<String> uriMatcher) {
+        generation.incrementAndGet();
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (uriMatcher.test(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /** {@code W/"<hash>"} of the text; equal texts always get the same tag. */
+    public static String contentTag(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return "W/\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 22) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+}
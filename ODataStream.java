@@ -0,0 +1,39 @@
+import java.io.InputStream;
+
+/**
+ * A successful OData response whose body has not been read yet. Used to pipe large
+ * feeds to the browser without buffering them; the caller must close the body, which also
+ * frees the call's place in the read bulkhead.
+ */
+public class ODataStream {
+
+    private final InputStream body;
+    private final String etag;
+    private final String contentType;
+    private final long contentLength;
+
+    public ODataStream(InputStream body, String etag, String contentType, long contentLength) {
+        this.body = body;
+        this.etag = etag;
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+    }
+
+    public InputStream getBody() {
+        return body;
+    }
+
+    /** The entity ETag, or null if SAP did not send one (e.g. for feeds). */
+    public String getETag() {
+        return etag;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /** The upstream Content-Length, or -1 if SAP sent the body chunked. */
+    public long getContentLength() {
+        return contentLength;
+    }
+}
@@ -0,0 +1,299 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONObject;
+
+/**
+ * Pushes order changes to browsers as Server-Sent Events on {@code GET /events?orders=1,2,3}.
+ *
+ * A client receives {@code order-changed} events for the orders it lists and
+ * {@code order-created} events for every new order. Events come from writes made through
+ * the portal and from the order index synchronizer, which polls SAP once for all clients,
+ * so browsers no longer have to refetch to notice a change.
+ *
+ * Publishing never waits for a client: each client has a small queue of frames that a writer
+ * thread drains, and a client whose queue overflows is dropped. A write that is still blocked
+ * after {@code writeTimeoutSeconds} (a browser that stopped reading) is interrupted, which
+ * closes the connection. A comment line is sent every {@code heartbeatSeconds} so dead
+ * connections are noticed and proxies keep the stream open. The browser's EventSource
+ * reconnects by itself after being dropped.
+ */
+public class OrderEventHub implements HttpHandler {
+
+    private static final int MAX_WATCHED_ORDERS = 1000;
+    private static final int MAX_PENDING_FRAMES = 64;
+
+    private static final class Subscriber {
+        final HttpExchange exchange;
+        final OutputStream out;
+        final Set<String> orders;
+        final ArrayBlockingQueue<String> pending = new ArrayBlockingQueue<>(MAX_PENDING_FRAMES);
+        // Set while a writer task owns the stream; only that task writes to or closes it.
+        final AtomicBoolean draining = new AtomicBoolean();
+        volatile boolean closed;
+
+        Subscriber(HttpExchange exchange, Set<String> orders) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.orders = orders;
+        }
+    }
+
+    /** A blocking write (or close) in progress on a writer thread. */
+    private static final class Write {
+        final Thread thread = Thread.currentThread();
+        final long deadline;
+        boolean finished; // guarded by this, so a late interrupt cannot hit the writer's next task
+
+        Write(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    @FunctionalInterface
+    private interface StreamAction {
+        void run() throws IOException;
+    }
+
+    private final int maxClients;
+    private final long writeTimeoutNanos;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final AtomicLong nextEventId = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ScheduledExecutorService sender;
+    private final ExecutorService writers;
+    private final Set<Write> writesInProgress = ConcurrentHashMap.newKeySet();
+
+    public OrderEventHub(int maxClients, long heartbeatSeconds, long writeTimeoutSeconds) {
+        this.maxClients = maxClients;
+        this.writeTimeoutNanos = TimeUnit.SECONDS.toNanos(writeTimeoutSeconds);
+        this.sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "portal-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Mostly idle; a thread is only tied up for as long as one write to a slow client may take.
+        this.writers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "portal-events-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sender.scheduleAtFixedRate(() -> broadcast(null, ": ping\n\n"), heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        sender.scheduleWithFixedDelay(this::interruptStalledWrites, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+        Set<String> orders;
+        try {
+            orders = parseOrders(exchange.getRequestURI().getRawQuery());
+        } catch (IllegalArgumentException e) {
+            byte[] body = ("Bad Request: " + e.getMessage()).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(400, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+            return;
+        }
+        if (subscribers.size() >= maxClients) {
+            exchange.getResponseHeaders().set("Retry-After", "30");
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(200, 0);
+        Subscriber subscriber = new Subscriber(exchange, orders);
+        subscribers.add(subscriber);
+        // The exchange stays open; the handler thread is free again.
+        enqueue(subscriber, "retry: 5000\n: connected\n\n");
+    }
+
+    /** Tells the clients watching {@code orderId} that it changed; {@code data} must contain "SalesOrder". */
+    public void publishChanged(String orderId, JSONObject data) {
+        publish("order-changed", orderId, data);
+    }
+
+    /** Tells every client about a new order, so it can be added to their lists. */
+    public void publishCreated(JSONObject data) {
+        publish("order-created", null, data);
+    }
+
+    private void publish(String event, String orderId, JSONObject data) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        published.incrementAndGet();
+        String frame = "id: " + nextEventId.incrementAndGet() + "\nevent: " + event + "\ndata: " + data + "\n\n";
+        sender.execute(() -> broadcast(orderId, frame));
+    }
+
+    /** Sends the frame to every client, or only to those watching {@code orderId} if it is not null. */
+    private void broadcast(String orderId, String frame) {
+        for (Subscriber subscriber : subscribers) {
+            if (orderId == null || subscriber.orders.contains(orderId)) {
+                enqueue(subscriber, frame);
+            }
+        }
+    }
+
+    /** Queues a frame for the client without waiting for it; a client that is too far behind is dropped. */
+    private void enqueue(Subscriber subscriber, String frame) {
+        if (subscriber.closed) {
+            return;
+        }
+        if (!subscriber.pending.offer(frame)) {
+            AsyncLogger.debug("Dropping an event stream client that stopped reading.");
+            remove(subscriber);
+            return;
+        }
+        if (subscriber.draining.compareAndSet(false, true)) {
+            writers.execute(() -> drain(subscriber));
+        }
+    }
+
+    /** Writes the queued frames, then closes the stream if the client was removed meanwhile. */
+    private void drain(Subscriber subscriber) {
+        while (true) {
+            String frame = subscriber.closed ? null : subscriber.pending.poll();
+            if (frame == null) {
+                if (subscriber.closed) {
+                    // draining stays set: nothing may write to the stream after this.
+                    try {
+                        withDeadline(subscriber.exchange::close);
+                    } catch (IOException e) {
+                        // Already broken; closing is all that was left to do.
+                    }
+                    return;
+                }
+                subscriber.draining.set(false);
+                // A frame or a removal that came after the poll saw the flag still set and left it to this task.
+                if ((subscriber.pending.isEmpty() && !subscriber.closed) || !subscriber.draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                withDeadline(() -> {
+                    subscriber.out.write(frame.getBytes(StandardCharsets.UTF_8));
+                    subscriber.out.flush();
+                });
+            } catch (IOException e) {
+                remove(subscriber);
+            }
+        }
+    }
+
+    /** Runs a blocking stream operation that {@link #interruptStalledWrites} aborts once it takes too long. */
+    private void withDeadline(StreamAction action) throws IOException {
+        Write write = new Write(System.nanoTime() + writeTimeoutNanos);
+        writesInProgress.add(write);
+        try {
+            action.run();
+        } finally {
+            writesInProgress.remove(write);
+            synchronized (write) {
+                write.finished = true;
+            }
+            // Clears an interrupt that arrived just after the operation returned.
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Interrupting a thread blocked on the connection's channel closes the connection and makes
+     * the write fail, which an unresponsive client would otherwise never do.
+     */
+    private void interruptStalledWrites() {
+        long now = System.nanoTime();
+        for (Write write : writesInProgress) {
+            if (now - write.deadline > 0) {
+                synchronized (write) {
+                    if (!write.finished) {
+                        write.thread.interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Stops sending to the client; its writer task closes the stream. */
+    private void remove(Subscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            dropped.incrementAndGet();
+            subscriber.closed = true;
+            subscriber.pending.clear();
+            if (subscriber.draining.compareAndSet(false, true)) {
+                writers.execute(() -> drain(subscriber));
+            }
+        }
+    }
+
+    public int getClientCount() {
+        return subscribers.size();
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    /** Clients disconnected by the portal: they stopped reading, or writing to them failed. */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** Ends every stream, so shutdown does not wait for them. */
+    public void close() {
+        sender.shutdownNow();
+        for (Subscriber subscriber : subscribers) {
+            remove(subscriber);
+        }
+        writers.shutdown();
+    }
+
+    private static Set<String> parseOrders(String rawQuery) {
+        if (rawQuery == null) {
+            return Collections.emptySet();
+        }
+        Set<String> orders = new HashSet<>();
+        for (String pair : rawQuery.split("&")) {
+            if (!pair.startsWith("orders=")) {
+                continue;
+            }
+            for (String id : URLDecoder.decode(pair.substring("orders=".length()), StandardCharsets.UTF_8).split(",")) {
+                if (id.isEmpty()) {
+                    continue;
+                }
+                if (!id.matches("\\d{1,10}")) {
+                    throw new IllegalArgumentException("order IDs must be numeric.");
+                }
+                orders.add(id);
+            }
+        }
+        if (orders.size() > MAX_WATCHED_ORDERS) {
+            throw new IllegalArgumentException("At most " + MAX_WATCHED_ORDERS + " orders can be watched.");
+        }
+        return orders;
+    }
+}
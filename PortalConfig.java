@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Loads the portal's settings from outside the code.
+ *
+ * Every setting is read as a JVM system property, so {@link #load} copies the entries of the
+ * configuration file ({@code portal.properties} in the working directory, or the file named
+ * by {@code -Dportal.config}) into the system properties, and the SAP connection is taken from
+ * the environment variables below. A setting given with {@code -D} on the command line wins
+ * over the environment, which wins over the file.
+ *
+ * Call it first in {@code main}, before any class reads its settings.
+ */
+public final class PortalConfig {
+
+    public static final String SERVICE_URL = "sap.serviceUrl";
+    public static final String USERNAME = "sap.username";
+    public static final String PASSWORD = "sap.password";
+
+    // Kept out of the file on purpose, so the password does not have to be written to disk.
+    private static final Map<String, String> ENVIRONMENT = Map.of(
+            "SAP_SERVICE_URL", SERVICE_URL,
+            "SAP_USERNAME", USERNAME,
+            "SAP_PASSWORD", PASSWORD);
+
+    private PortalConfig() {
+    }
+
+    public static void load() {
+        for (Map.Entry<String, String> variable : ENVIRONMENT.entrySet()) {
+            String value = System.getenv(variable.getKey());
+            if (value != null && !value.isEmpty() && System.getProperty(variable.getValue()) == null) {
+                System.setProperty(variable.getValue(), value);
+            }
+        }
+
+        String configured = System.getProperty("portal.config");
+        Path file = Path.of(configured != null ? configured : "portal.properties");
+        if (!Files.isRegularFile(file)) {
+            if (configured != null) {
+                throw new IllegalStateException("Configuration file " + file.toAbsolutePath() + " does not exist.");
+            }
+            return;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read configuration file " + file.toAbsolutePath(), e);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (System.getProperty(name) == null) {
+                System.setProperty(name, properties.getProperty(name).trim());
+            }
+        }
+        AsyncLogger.info("Loaded " + properties.size() + " settings from " + file.toAbsolutePath());
+    }
+
+    /** Returns a setting that has no sensible default, or fails with a message saying how to set it. */
+    public static String require(String name) {
+        String value = System.getProperty(name);
+        if (value == null || value.isBlank()) {
+            throw new IllegalStateException("Missing setting " + name + ": set it in portal.properties or with -D" + name
+                    + ENVIRONMENT.entrySet().stream()
+                            .filter(variable -> variable.getValue().equals(name))
+                            .map(variable -> " or the " + variable.getKey() + " environment variable")
+                            .findFirst().orElse("")
+                    + ".");
+        }
+        return value;
+    }
+}
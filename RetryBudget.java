@@ -0,0 +1,30 @@
+/**
+ * Limits retries to a fraction of the normal traffic, so that retrying cannot multiply the
+ * load on a Gateway that is already struggling. Every first attempt deposits
+ * {@code ratio} tokens (up to {@code maxTokens}); every retry spends one token.
+ */
+public class RetryBudget {
+
+    private final double ratio;
+    private final double maxTokens;
+    private double tokens;
+
+    public RetryBudget(double ratio, double maxTokens) {
+        this.ratio = ratio;
+        this.maxTokens = maxTokens;
+        this.tokens = maxTokens;
+    }
+
+    public synchronized void recordRequest() {
+        tokens = Math.min(maxTokens, tokens + ratio);
+    }
+
+    /** Returns true and spends a token if a retry is allowed right now. */
+    public synchronized boolean tryAcquireRetry() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
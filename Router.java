@@ -0,0 +1,202 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps request method and path to a handler with a trie over the path segments.
+ *
+ * Routes are registered once, e.g. {@code add("GET", "/api/sales-order/{id:digits}/items", handler)}.
+ * A segment is either a literal or a typed parameter: {@code {name:digits}} (1 to 18 digits,
+ * so it always fits a long) or {@code {name}} (any non-empty segment). Literals win over
+ * parameters. {@link #match} walks the path once without regular expressions and only
+ * allocates for the parameter values and the result. It tells apart an unknown path (404)
+ * and a known path with another method (405, with the allowed methods for the Allow header).
+ *
+ * Not thread-safe while routes are added; safe to share once registration is finished.
+ */
+public class Router<H> {
+
+    public enum Status { FOUND, NOT_FOUND, METHOD_NOT_ALLOWED }
+
+    private enum ParamType { DIGITS, SEGMENT }
+
+    private static final int MAX_DIGITS = 18;
+
+    /** The outcome of {@link #match}. */
+    public static final class Match<H> {
+        private final Status status;
+        private final H handler;
+        private final String route;
+        private final String[] params;
+        private final String allow;
+
+        private Match(Status status, H handler, String route, String[] params, String allow) {
+            this.status = status;
+            this.handler = handler;
+            this.route = route;
+            this.params = params;
+            this.allow = allow;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public H getHandler() {
+            return handler;
+        }
+
+        /** The matched template with parameter types left out, e.g. {@code /api/sales-order/{id}}; a fixed metrics label. */
+        public String getRoute() {
+            return route;
+        }
+
+        /** The value of the {@code index}-th parameter of the path, counted from 0. */
+        public String param(int index) {
+            return params[index];
+        }
+
+        /** The methods the path supports, for the Allow header of a 405. */
+        public String getAllow() {
+            return allow;
+        }
+    }
+
+    private static final class Node<H> {
+        final List<String> literals = new ArrayList<>();
+        final List<Node<H>> literalChildren = new ArrayList<>();
+        Node<H> param;
+        ParamType paramType;
+        final Map<String, H> handlers = new LinkedHashMap<>();
+        String route;
+        String allow;
+        Match<H> methodNotAllowed;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final Match NOT_FOUND = new Match<>(Status.NOT_FOUND, null, null, null, null);
+
+    private final Node<H> root = new Node<>();
+    private int maxParams;
+
+    /** Registers {@code handler} for {@code method} on the path template. */
+    public Router<H> add(String method, String template, H handler) {
+        if (!template.startsWith("/")) {
+            throw new IllegalArgumentException("Route must start with '/': " + template);
+        }
+        Node<H> node = root;
+        StringBuilder route = new StringBuilder();
+        int params = 0;
+        for (String segment : template.substring(1).split("/", -1)) {
+            if (segment.isEmpty()) {
+                throw new IllegalArgumentException("Empty segment in route " + template);
+            }
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                int colon = segment.indexOf(':');
+                String name = segment.substring(1, colon < 0 ? segment.length() - 1 : colon);
+                ParamType type = colon < 0 ? ParamType.SEGMENT
+                        : ParamType.valueOf(segment.substring(colon + 1, segment.length() - 1).toUpperCase(Locale.ROOT));
+                if (node.param == null) {
+                    node.param = new Node<>();
+                    node.paramType = type;
+                } else if (node.paramType != type) {
+                    throw new IllegalArgumentException("Conflicting parameter types in route " + template);
+                }
+                node = node.param;
+                route.append("/{").append(name).append('}');
+                params++;
+            } else {
+                int index = node.literals.indexOf(segment);
+                if (index < 0) {
+                    node.literals.add(segment);
+                    node.literalChildren.add(new Node<>());
+                    index = node.literals.size() - 1;
+                }
+                node = node.literalChildren.get(index);
+                route.append('/').append(segment);
+            }
+        }
+        String key = method.toUpperCase(Locale.ROOT);
+        if (node.handlers.putIfAbsent(key, handler) != null) {
+            throw new IllegalArgumentException("Duplicate route " + key + " " + template);
+        }
+        node.route = route.toString();
+        node.allow = String.join(", ", node.handlers.keySet());
+        node.methodNotAllowed = new Match<>(Status.METHOD_NOT_ALLOWED, null, node.route, null, node.allow);
+        maxParams = Math.max(maxParams, params);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Match<H> match(String method, String path) {
+        if (path.isEmpty() || path.charAt(0) != '/') {
+            return NOT_FOUND;
+        }
+        Node<H> node = root;
+        String[] params = null;
+        int paramCount = 0;
+        int start = 1;
+        int length = path.length();
+        while (true) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            Node<H> next = child(node, path, start, end);
+            if (next == null) {
+                return NOT_FOUND;
+            }
+            if (next == node.param) {
+                if (params == null) {
+                    params = new String[maxParams];
+                }
+                params[paramCount++] = path.substring(start, end);
+            }
+            node = next;
+            if (end == length) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (node.handlers.isEmpty()) {
+            return NOT_FOUND;
+        }
+        // Methods arrive in upper case, so this does not allocate in practice.
+        H handler = node.handlers.get(method.toUpperCase(Locale.ROOT));
+        if (handler == null) {
+            return node.methodNotAllowed;
+        }
+        return new Match<>(Status.FOUND, handler, node.route, params, node.allow);
+    }
+
+    /** The child for path[start, end): a literal if one matches, else the parameter if the segment fits its type. */
+    private Node<H> child(Node<H> node, String path, int start, int end) {
+        int segmentLength = end - start;
+        if (segmentLength == 0) {
+            return null;
+        }
+        for (int i = 0; i < node.literals.size(); i++) {
+            String literal = node.literals.get(i);
+            if (literal.length() == segmentLength && path.startsWith(literal, start)) {
+                return node.literalChildren.get(i);
+            }
+        }
+        if (node.param == null) {
+            return null;
+        }
+        if (node.paramType == ParamType.DIGITS) {
+            if (segmentLength > MAX_DIGITS) {
+                return null;
+            }
+            for (int i = start; i < end; i++) {
+                char c = path.charAt(i);
+                if (c < '0' || c > '9') {
+                    return null;
+                }
+            }
+        }
+        return node.param;
+    }
+}
@@ -0,0 +1,227 @@
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Creates many sales orders with a bounded number of SAP calls in flight. Each order is
+ * either sent as its own POST, or, in batch mode, as one change set inside a $batch
+ * request of up to {@code batchSize} orders. Both ways reuse the client's CSRF token and
+ * session. Every order is its own unit: a failing order never rolls back the others.
+ *
+ * Results are reported to the {@link Listener} as soon as they arrive, in completion
+ * order, so the caller can stream them to the browser.
+ */
+public class SalesOrderBulkUpload {
+
+    /** Receives one call per order, from the thread that finished the SAP call. */
+    @FunctionalInterface
+    public interface Listener {
+        void onResult(int index, int status, String salesOrder, String error);
+    }
+
+    private final ApiClient apiClient;
+    private final List<String> orders;
+    private final int parallelism;
+    private final int batchSize;
+    private final Listener listener;
+
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    private final AtomicInteger pendingChunks = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final CompletableFuture<JSONObject> done = new CompletableFuture<>();
+    private final int chunkCount;
+
+    /**
+     * @param batchSize orders per $batch request, or 1 to send every order as its own POST
+     */
+    public SalesOrderBulkUpload(ApiClient apiClient, List<String> orders, int parallelism, int batchSize, Listener listener) {
+        this.apiClient = apiClient;
+        this.orders = orders;
+        this.parallelism = Math.max(1, parallelism);
+        this.batchSize = Math.max(1, batchSize);
+        this.listener = listener;
+        this.chunkCount = (orders.size() + this.batchSize - 1) / this.batchSize;
+        this.pendingChunks.set(chunkCount);
+    }
+
+    /**
+     * Parses the upload body: a JSON array of order objects, or NDJSON (one object per line).
+     *
+     * @throws IllegalArgumentException if the body is malformed, empty or has more than {@code maxOrders} orders
+     */
+    public static List<String> parseOrders(String body, int maxOrders) {
+        List<String> orders = new ArrayList<>();
+        String trimmed = body.trim();
+        try {
+            if (trimmed.startsWith("[")) {
+                JSONArray array = new JSONArray(new JSONTokener(trimmed));
+                for (int i = 0; i < array.length(); i++) {
+                    orders.add(array.getJSONObject(i).toString());
+                }
+            } else {
+                for (String line : trimmed.split("\r?\n")) {
+                    if (!line.isBlank()) {
+                        orders.add(new JSONObject(line).toString());
+                    }
+                }
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Orders must be a JSON array or one JSON object per line: " + e.getMessage());
+        }
+        if (orders.isEmpty()) {
+            throw new IllegalArgumentException("No orders in request.");
+        }
+        if (orders.size() > maxOrders) {
+            throw new IllegalArgumentException("At most " + maxOrders + " orders per upload.");
+        }
+        return orders;
+    }
+
+    /** Starts the upload; the future completes with {@code {"created":n,"failed":m}} after the last order. */
+    public CompletableFuture<JSONObject> start() {
+        if (chunkCount == 0) {
+            done.complete(summary());
+        }
+        for (int i = 0; i < Math.min(parallelism, chunkCount); i++) {
+            runLane();
+        }
+        return done;
+    }
+
+    /**
+     * Keeps one of the {@code parallelism} lanes busy: submits chunks one after the other and,
+     * when a call is still running, continues from its completion. Calls that finish at once
+     * (rejected by a full bulkhead or an open circuit) are taken in this loop, not by recursion,
+     * so a long upload of failing orders cannot overflow the stack.
+     */
+    private void runLane() {
+        while (true) {
+            int chunk = nextChunk.getAndIncrement();
+            if (chunk >= chunkCount) {
+                return;
+            }
+            int from = chunk * batchSize;
+            int to = Math.min(orders.size(), from + batchSize);
+            CompletableFuture<Void> call = batchSize == 1 ? submitSingle(from) : submitBatch(from, to);
+            // Whoever gets here second continues the lane: the callback if the call was still running, else this loop.
+            AtomicBoolean handedOver = new AtomicBoolean();
+            call.whenComplete((ignored, error) -> {
+                chunkDone(error);
+                if (!handedOver.compareAndSet(false, true)) {
+                    runLane();
+                }
+            });
+            if (handedOver.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void chunkDone(Throwable error) {
+        if (error != null) {
+            // Only reached if the listener failed; the orders' own errors are results.
+            AsyncLogger.error("Could not report bulk upload results", error);
+        }
+        if (pendingChunks.decrementAndGet() == 0) {
+            done.complete(summary());
+        }
+    }
+
+    private CompletableFuture<Void> submitSingle(int index) {
+        return apiClient.createSalesOrderAsync(orders.get(index)).handle((body, error) -> {
+            if (error != null) {
+                report(index, statusOf(error), null, describe(error));
+            } else {
+                report(index, 201, salesOrderNumber(body), null);
+            }
+            return null;
+        });
+    }
+
+    private CompletableFuture<Void> submitBatch(int from, int to) {
+        return apiClient.createSalesOrdersAsync(orders.subList(from, to)).handle((parts, error) -> {
+            if (error != null) {
+                for (int index = from; index < to; index++) {
+                    report(index, statusOf(error), null, describe(error));
+                }
+            } else if (parts.size() != to - from) {
+                for (int index = from; index < to; index++) {
+                    report(index, 502, null, "Unexpected $batch response with " + parts.size() + " parts.");
+                }
+            } else {
+                for (int i = 0; i < parts.size(); i++) {
+                    ODataBatch.Part part = parts.get(i);
+                    if (part.getStatusCode() >= 200 && part.getStatusCode() < 300) {
+                        report(from + i, part.getStatusCode(), salesOrderNumber(part.getBody()), null);
+                    } else {
+                        report(from + i, part.getStatusCode(), null, errorMessage(part.getBody()));
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    private void report(int index, int status, String salesOrder, String error) {
+        (error == null ? created : failed).incrementAndGet();
+        listener.onResult(index, status, salesOrder, error);
+    }
+
+    private JSONObject summary() {
+        return new JSONObject().put("created", created.get()).put("failed", failed.get());
+    }
+
+    static String salesOrderNumber(String responseBody) {
+        try {
+            JSONObject json = new JSONObject(responseBody);
+            JSONObject d = json.optJSONObject("d");
+            return (d != null ? d : json).optString("SalesOrder", null);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /** SAP's error text from an OData JSON error body, or the raw body. */
+    private static String errorMessage(String responseBody) {
+        try {
+            return new JSONObject(responseBody).getJSONObject("error").getJSONObject("message").getString("value");
+        } catch (JSONException e) {
+            return responseBody.isEmpty() ? "Rejected by SAP" : responseBody;
+        }
+    }
+
+    static String describe(Throwable error) {
+        Throwable cause = unwrap(error);
+        return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+    }
+
+    static int statusOf(Throwable error) {
+        Throwable cause = unwrap(error);
+        if (cause instanceof UpstreamStatusException) {
+            return ((UpstreamStatusException) cause).getStatusCode();
+        }
+        if (cause instanceof UpstreamBusyException) {
+            return 503;
+        }
+        if (cause instanceof HttpTimeoutException) {
+            return 504;
+        }
+        return 500;
+    }
+
+    static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
@@ -0,0 +1,545 @@
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONObject;
+
+/**
+ * A local, in-memory copy of the user's sales order headers, kept up to date by
+ * {@link SalesOrderSynchronizer}, so that list, search and sort queries are answered
+ * without asking SAP.
+ *
+ * Orders are looked up by number through an open-addressing map with primitive long keys.
+ * For every sortable field there is a secondary index: the orders in that field's order,
+ * searched with binary search for exact, prefix and range filters. Readers work on an
+ * immutable snapshot that is replaced after each sync, so queries take no locks.
+ */
+public class SalesOrderIndex {
+
+    /** The header properties the synchronizer requests from SAP. */
+    public static final Set<String> PROPERTIES = Set.of(
+            "SalesOrder", "SalesOrderType", "SalesOrganization", "SoldToParty", "PurchaseOrderByCustomer",
+            "TotalNetAmount", "TransactionCurrency", "CreationDate", "LastChangeDateTime");
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 500;
+
+    /** One indexed order header. Immutable; an update replaces the whole object. */
+    public static final class Order {
+        final long number;
+        final int slot;
+        final String soldToParty;
+        final String purchaseOrderKey; // lower-cased for case-insensitive prefix search
+        final double totalNetAmount;
+        final long creationDate; // epoch millis, Long.MIN_VALUE if unknown
+        final long lastChange;   // epoch millis, Long.MIN_VALUE if unknown
+        final String json;       // rendered once, copied into every result that contains it
+
+        private Order(long number, int slot, JSONObject properties) {
+            this.number = number;
+            this.slot = slot;
+            this.soldToParty = properties.optString("SoldToParty", "");
+            this.purchaseOrderKey = properties.optString("PurchaseOrderByCustomer", "").toLowerCase(Locale.ROOT);
+            this.totalNetAmount = parseAmount(properties.optString("TotalNetAmount", ""));
+            this.creationDate = parseTimestamp(properties.optString("CreationDate", ""));
+            this.lastChange = parseTimestamp(properties.optString("LastChangeDateTime", ""));
+            this.json = properties.toString();
+        }
+
+        public long getNumber() {
+            return number;
+        }
+
+        public long getLastChange() {
+            return lastChange;
+        }
+    }
+
+    /** The sortable fields and the order they define. */
+    private static final Map<String, Comparator<Order>> SORT_FIELDS = Map.of(
+            "SalesOrder", Comparator.comparingLong(o -> o.number),
+            "SoldToParty", Comparator.<Order, String>comparing(o -> o.soldToParty).thenComparingLong(o -> o.number),
+            "PurchaseOrderByCustomer", Comparator.<Order, String>comparing(o -> o.purchaseOrderKey).thenComparingLong(o -> o.number),
+            "CreationDate", Comparator.<Order>comparingLong(o -> o.creationDate).thenComparingLong(o -> o.number),
+            "LastChangeDateTime", Comparator.<Order>comparingLong(o -> o.lastChange).thenComparingLong(o -> o.number),
+            "TotalNetAmount", Comparator.<Order>comparingDouble(o -> o.totalNetAmount).thenComparingLong(o -> o.number));
+
+    /** A consistent, read-only view of the index. */
+    private static final class Snapshot {
+        final LongIntMap slotsByNumber;
+        final Order[] orders; // by slot; never null up to size
+        final Map<String, Order[]> sorted;
+        final long syncedAt;
+
+        Snapshot(LongIntMap slotsByNumber, Order[] orders, Map<String, Order[]> sorted, long syncedAt) {
+            this.slotsByNumber = slotsByNumber;
+            this.orders = orders;
+            this.sorted = sorted;
+            this.syncedAt = syncedAt;
+        }
+    }
+
+    /** Receives the headers a sync added or changed; not called for the initial load. */
+    @FunctionalInterface
+    public interface ChangeListener {
+        void onChange(JSONObject header, boolean created);
+    }
+
+    private volatile ChangeListener changeListener;
+
+    // Writer state, only touched by the synchronizer thread under this.
+    private LongIntMap slots = new LongIntMap(1024);
+    private Order[] orders = new Order[1024];
+    private int size;
+
+    private volatile Snapshot snapshot;
+
+    public void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /** True once the first full sync has completed. */
+    public boolean isReady() {
+        return snapshot != null;
+    }
+
+    public int size() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.orders.length;
+    }
+
+    /** Epoch millis of the last completed sync, or 0. */
+    public long getSyncedAt() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.syncedAt;
+    }
+
+    /** Replaces the whole index, e.g. after a full sync that may have missed deletions. */
+    public synchronized void replaceAll(Collection<JSONObject> headers) {
+        slots = new LongIntMap(Math.max(1024, headers.size() * 2));
+        orders = new Order[Math.max(1024, headers.size())];
+        size = 0;
+        upsertAll(headers);
+    }
+
+    /** Adds new orders and replaces changed ones, then publishes a new snapshot. */
+    public synchronized void upsertAll(Collection<JSONObject> headers) {
+        // Compared against the last snapshot, so a full reload only reports what really changed.
+        Snapshot previous = snapshot;
+        ChangeListener listener = changeListener;
+        List<Order> changes = new ArrayList<>();
+        for (JSONObject header : headers) {
+            long number;
+            try {
+                number = Long.parseLong(header.optString("SalesOrder", ""));
+            } catch (NumberFormatException e) {
+                AsyncLogger.warn("Skipping order with non-numeric number: " + header.optString("SalesOrder"));
+                continue;
+            }
+            int slot = slots.get(number);
+            if (slot < 0) {
+                slot = size++;
+                if (slot == orders.length) {
+                    orders = Arrays.copyOf(orders, orders.length * 2);
+                }
+                slots.put(number, slot);
+            }
+            Order order = new Order(number, slot, header);
+            orders[slot] = order;
+            if (listener != null && previous != null) {
+                int previousSlot = previous.slotsByNumber.get(number);
+                if (previousSlot < 0 || !previous.orders[previousSlot].json.equals(order.json)) {
+                    changes.add(order);
+                }
+            }
+        }
+        publish();
+        for (Order order : changes) {
+            listener.onChange(new JSONObject(order.json), previous.slotsByNumber.get(order.number) < 0);
+        }
+    }
+
+    private void publish() {
+        Order[] current = Arrays.copyOf(orders, size);
+        Map<String, Order[]> sorted = new java.util.HashMap<>();
+        for (Map.Entry<String, Comparator<Order>> field : SORT_FIELDS.entrySet()) {
+            Order[] byField = current.clone();
+            Arrays.sort(byField, field.getValue());
+            sorted.put(field.getKey(), byField);
+        }
+        snapshot = new Snapshot(slots.copy(), current, sorted, System.currentTimeMillis());
+    }
+
+    /**
+     * Runs a query against the current snapshot and returns
+     * {@code {"results":[...],"count":n,"syncedAt":"..."}}.
+     *
+     * @throws IllegalStateException if the index has not been loaded yet
+     */
+    public String search(Query query) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            throw new IllegalStateException("The order index is still loading.");
+        }
+        int count;
+        List<Order> page;
+        if (query.isUnfiltered()) {
+            // Plain list view: read the page straight off the sort index.
+            count = current.orders.length;
+            page = new ArrayList<>(query.size);
+            Order[] sorted = current.sorted.get(query.sortField);
+            for (int i = query.offset; i < sorted.length && page.size() < query.size; i++) {
+                page.add(sorted[query.descending ? sorted.length - 1 - i : i]);
+            }
+        } else {
+            List<Order> matches = candidates(current, query);
+            count = matches.size();
+            page = page(current, query, matches);
+        }
+
+        StringBuilder json = new StringBuilder(64 + page.size() * 256).append("{\"results\":[");
+        for (int i = 0; i < page.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(page.get(i).json);
+        }
+        return json.append("],\"count\":").append(count)
+                .append(",\"syncedAt\":").append(JSONObject.quote(java.time.Instant.ofEpochMilli(current.syncedAt).toString()))
+                .append('}').toString();
+    }
+
+    /** Finds all matches, scanning only the narrowest index range the filters allow. */
+    private static List<Order> candidates(Snapshot snapshot, Query query) {
+        if (query.salesOrder != null) {
+            int slot = snapshot.slotsByNumber.get(query.salesOrder);
+            List<Order> matches = new ArrayList<>(1);
+            if (slot >= 0 && query.matches(snapshot.orders[slot])) {
+                matches.add(snapshot.orders[slot]);
+            }
+            return matches;
+        }
+        Order[] driver = snapshot.orders;
+        int from = 0;
+        int to = driver.length;
+        if (query.soldToParty != null) {
+            Order[] byCustomer = snapshot.sorted.get("SoldToParty");
+            int lo = lowerBound(byCustomer, o -> o.soldToParty.compareTo(query.soldToParty) >= 0);
+            int hi = lowerBound(byCustomer, o -> o.soldToParty.compareTo(query.soldToParty) > 0);
+            if (hi - lo < to - from) {
+                driver = byCustomer;
+                from = lo;
+                to = hi;
+            }
+        }
+        if (query.purchaseOrderPrefix != null) {
+            Order[] byPurchaseOrder = snapshot.sorted.get("PurchaseOrderByCustomer");
+            String prefix = query.purchaseOrderPrefix;
+            int lo = lowerBound(byPurchaseOrder, o -> o.purchaseOrderKey.compareTo(prefix) >= 0);
+            int hi = lowerBound(byPurchaseOrder, o -> o.purchaseOrderKey.compareTo(prefix) >= 0 && !o.purchaseOrderKey.startsWith(prefix));
+            if (hi - lo < to - from) {
+                driver = byPurchaseOrder;
+                from = lo;
+                to = hi;
+            }
+        }
+        if (query.createdFrom != Long.MIN_VALUE || query.createdTo != Long.MAX_VALUE) {
+            Order[] byDate = snapshot.sorted.get("CreationDate");
+            int lo = lowerBound(byDate, o -> o.creationDate >= query.createdFrom);
+            int hi = lowerBound(byDate, o -> o.creationDate > query.createdTo);
+            if (hi - lo < to - from) {
+                driver = byDate;
+                from = lo;
+                to = hi;
+            }
+        }
+        List<Order> matches = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            if (query.matches(driver[i])) {
+                matches.add(driver[i]);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Sorts and cuts out the requested page. Small result sets are sorted directly; large ones
+     * are marked in a bit set and read off the precomputed sort index, which avoids sorting.
+     */
+    private static List<Order> page(Snapshot snapshot, Query query, List<Order> matches) {
+        int end = (int) Math.min(matches.size(), (long) query.offset + query.size);
+        if (query.offset >= end) {
+            return List.of();
+        }
+        if (matches.size() <= 4096) {
+            Comparator<Order> order = SORT_FIELDS.get(query.sortField);
+            matches.sort(query.descending ? order.reversed() : order);
+            return matches.subList(query.offset, end);
+        }
+        BitSet marked = new BitSet(snapshot.orders.length);
+        for (Order match : matches) {
+            marked.set(match.slot);
+        }
+        Order[] sorted = snapshot.sorted.get(query.sortField);
+        List<Order> page = new ArrayList<>(end - query.offset);
+        int seen = 0;
+        for (int i = 0; i < sorted.length && seen < end; i++) {
+            Order candidate = sorted[query.descending ? sorted.length - 1 - i : i];
+            if (marked.get(candidate.slot)) {
+                if (seen >= query.offset) {
+                    page.add(candidate);
+                }
+                seen++;
+            }
+        }
+        return page;
+    }
+
+    /** First index whose order satisfies {@code atOrAfter}, which must be monotonic over the array. */
+    private static int lowerBound(Order[] sorted, java.util.function.Predicate<Order> atOrAfter) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (atOrAfter.test(sorted[mid])) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    static double parseAmount(String value) {
+        try {
+            return value.isEmpty() ? 0 : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Parses Edm.DateTimeOffset ({@code ...Z}) and Edm.DateTime (no offset, taken as UTC) values. */
+    static long parseTimestamp(String value) {
+        if (value.isEmpty()) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            // Checked up front rather than by catching: a full sync parses every header.
+            int time = value.indexOf('T');
+            boolean hasOffset = value.endsWith("Z") || (time > 0 && (value.indexOf('+', time) > 0 || value.indexOf('-', time) > 0));
+            return hasOffset
+                    ? OffsetDateTime.parse(value).toInstant().toEpochMilli()
+                    : LocalDateTime.parse(value).toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * A search over the index, parsed from the portal's query string: {@code order},
+     * {@code customer} (SoldToParty), {@code po} (PurchaseOrderByCustomer prefix, case-insensitive),
+     * {@code from} and {@code to} (CreationDate, yyyy-MM-dd, inclusive), {@code sort=Field:asc|desc},
+     * {@code offset} and {@code size}.
+     */
+    public static final class Query {
+        private Long salesOrder;
+        private String soldToParty;
+        private String purchaseOrderPrefix;
+        private long createdFrom = Long.MIN_VALUE;
+        private long createdTo = Long.MAX_VALUE;
+        private String sortField = "SalesOrder";
+        private boolean descending = true;
+        private int offset;
+        private int size = DEFAULT_PAGE_SIZE;
+
+        /** @throws IllegalArgumentException for unknown sort fields or malformed values */
+        public static Query parse(String rawQuery) {
+            Query query = new Query();
+            if (rawQuery == null || rawQuery.isEmpty()) {
+                return query;
+            }
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq <= 0) {
+                    continue;
+                }
+                String name = URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8);
+                String value = URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8).trim();
+                if (!value.isEmpty()) {
+                    query.apply(name, value);
+                }
+            }
+            return query;
+        }
+
+        private void apply(String name, String value) {
+            switch (name) {
+                case "order":
+                    salesOrder = parseNumber(name, value);
+                    break;
+                case "customer":
+                    soldToParty = value;
+                    break;
+                case "po":
+                    purchaseOrderPrefix = value.toLowerCase(Locale.ROOT);
+                    break;
+                case "from":
+                    createdFrom = parseDate(name, value).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+                    break;
+                case "to":
+                    createdTo = parseDate(name, value).plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() - 1;
+                    break;
+                case "sort": {
+                    String[] parts = value.split(":", 2);
+                    if (!SORT_FIELDS.containsKey(parts[0])) {
+                        throw new IllegalArgumentException("Cannot sort by " + parts[0]);
+                    }
+                    sortField = parts[0];
+                    descending = parts.length > 1 && "desc".equalsIgnoreCase(parts[1]);
+                    break;
+                }
+                case "offset":
+                    offset = (int) Math.min(Integer.MAX_VALUE, parseNumber(name, value));
+                    break;
+                case "size":
+                    long requested = parseNumber(name, value);
+                    if (requested < 1 || requested > MAX_PAGE_SIZE) {
+                        throw new IllegalArgumentException("size must be between 1 and " + MAX_PAGE_SIZE);
+                    }
+                    size = (int) requested;
+                    break;
+                default:
+                    // Unknown parameters (e.g. format=json) are ignored.
+                    break;
+            }
+        }
+
+        boolean isUnfiltered() {
+            return salesOrder == null && soldToParty == null && purchaseOrderPrefix == null
+                    && createdFrom == Long.MIN_VALUE && createdTo == Long.MAX_VALUE;
+        }
+
+        boolean matches(Order order) {
+            return (soldToParty == null || soldToParty.equals(order.soldToParty))
+                    && (purchaseOrderPrefix == null || order.purchaseOrderKey.startsWith(purchaseOrderPrefix))
+                    && order.creationDate >= createdFrom
+                    && (createdTo == Long.MAX_VALUE || order.creationDate <= createdTo);
+        }
+
+        private static long parseNumber(String name, String value) {
+            try {
+                long number = Long.parseLong(value);
+                if (number < 0) {
+                    throw new NumberFormatException();
+                }
+                return number;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(name + " must be a non-negative number");
+            }
+        }
+
+        private static LocalDate parseDate(String name, String value) {
+            try {
+                return LocalDate.parse(value);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException(name + " must be a date like 2024-01-31");
+            }
+        }
+    }
+
+    /**
+     * Open-addressing hash map from long to int with linear probing, so order numbers are
+     * stored without boxing. Values are non-negative; {@link #get} returns -1 if absent.
+     */
+    static final class LongIntMap {
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        private long[] keys;
+        private int[] values;
+        private int size;
+
+        LongIntMap(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+            keys = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        private LongIntMap(long[] keys, int[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+                if (keys[i] == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(long key, int value) {
+            if (key == EMPTY) {
+                throw new IllegalArgumentException("Key not supported: " + key);
+            }
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == EMPTY) {
+                    keys[i] = key;
+                    values[i] = value;
+                    size++;
+                    return;
+                }
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+            }
+        }
+
+        LongIntMap copy() {
+            return new LongIntMap(keys.clone(), values.clone(), size);
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int mix(long key) {
+            // Order numbers are sequential; spread them over the table (Stafford variant 13).
+            long h = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+            h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+            return (int) (h ^ (h >>> 31));
+        }
+    }
+}
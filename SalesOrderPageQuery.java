@@ -0,0 +1,216 @@
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One page request against the A_SalesOrder list, parsed from the portal's query string
+ * ({@code size}, {@code cursor}, {@code filter=Field:value}, {@code sort=Field:asc|desc},
+ * {@code select=Field,Field}) and mapped to OData $top/$skip/$skiptoken/$filter/$orderby/$select.
+ *
+ * Only whitelisted header fields may be filtered, sorted or selected, so browser input
+ * never ends up in the OData URI unchecked.
+ */
+public class SalesOrderPageQuery {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 500;
+
+    private static final Set<String> FIELDS = Set.of(
+            "SalesOrder", "SalesOrderType", "SalesOrganization", "DistributionChannel",
+            "OrganizationDivision", "SoldToParty", "PurchaseOrderByCustomer", "CreatedByUser",
+            "TransactionCurrency", "TotalNetAmount", "CreationDate", "LastChangeDateTime");
+
+    // Fields that can be compared with a plain string literal in $filter.
+    private static final Set<String> STRING_FIELDS = Set.of(
+            "SalesOrder", "SalesOrderType", "SalesOrganization", "DistributionChannel",
+            "OrganizationDivision", "SoldToParty", "PurchaseOrderByCustomer", "CreatedByUser",
+            "TransactionCurrency");
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private final Map<String, String> filters = new LinkedHashMap<>();
+    private String sortField = "SalesOrder";
+    private boolean descending = true;
+    private final Set<String> select = new LinkedHashSet<>();
+    private long skip;
+    private String skipToken;
+
+    /**
+     * @param rawQuery             the undecoded query string, may be null
+     * @param defaultCreatedByUser applied as CreatedByUser filter when the request has none
+     * @throws IllegalArgumentException for unknown fields or malformed values
+     */
+    public static SalesOrderPageQuery parse(String rawQuery, String defaultCreatedByUser) {
+        SalesOrderPageQuery query = new SalesOrderPageQuery();
+        if (rawQuery != null && !rawQuery.isEmpty()) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq <= 0) {
+                    continue;
+                }
+                String name = URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8);
+                String value = URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+                query.apply(name, value);
+            }
+        }
+        if (!query.filters.containsKey("CreatedByUser") && defaultCreatedByUser != null) {
+            query.filters.put("CreatedByUser", defaultCreatedByUser);
+        }
+        if (query.select.isEmpty()) {
+            query.select.addAll(ODataJsonTransformer.ORDER_LIST_PROPERTIES);
+        }
+        query.select.add("SalesOrder");
+        return query;
+    }
+
+    private void apply(String name, String value) {
+        switch (name) {
+            case "size":
+                try {
+                    pageSize = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("size must be a number");
+                }
+                if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+                    throw new IllegalArgumentException("size must be between 1 and " + MAX_PAGE_SIZE);
+                }
+                break;
+            case "cursor":
+                decodeCursor(value);
+                break;
+            case "filter": {
+                int colon = value.indexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("filter must look like Field:value");
+                }
+                String field = value.substring(0, colon);
+                if (!STRING_FIELDS.contains(field)) {
+                    throw new IllegalArgumentException("Cannot filter on field " + field);
+                }
+                filters.put(field, value.substring(colon + 1));
+                break;
+            }
+            case "sort": {
+                String[] parts = value.split(":", 2);
+                requireField(parts[0]);
+                sortField = parts[0];
+                descending = parts.length > 1 && "desc".equalsIgnoreCase(parts[1]);
+                break;
+            }
+            case "select":
+                for (String field : value.split(",")) {
+                    requireField(field);
+                    select.add(field);
+                }
+                break;
+            default:
+                // Unknown parameters (e.g. format=json) are ignored.
+                break;
+        }
+    }
+
+    private static void requireField(String field) {
+        if (!FIELDS.contains(field)) {
+            throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public Set<String> getSelect() {
+        return select;
+    }
+
+    /** The OData query string for this page, without the leading '?'. */
+    public String toODataQuery() {
+        StringBuilder q = new StringBuilder();
+        if (!filters.isEmpty()) {
+            StringBuilder filter = new StringBuilder();
+            for (Map.Entry<String, String> f : filters.entrySet()) {
+                if (filter.length() > 0) {
+                    filter.append(" and ");
+                }
+                // OData escapes a single quote inside a literal by doubling it.
+                filter.append(f.getKey()).append(" eq '").append(f.getValue().replace("'", "''")).append('\'');
+            }
+            q.append("$filter=").append(encode(filter.toString())).append('&');
+        }
+        q.append("$orderby=").append(encode(sortField + (descending ? " desc" : " asc")));
+        q.append("&$select=").append(encode(String.join(",", select)));
+        q.append("&$top=").append(pageSize);
+        q.append("&$inlinecount=allpages");
+        if (skipToken != null) {
+            q.append("&$skiptoken=").append(encode(skipToken));
+        } else if (skip > 0) {
+            q.append("&$skip=").append(skip);
+        }
+        return q.toString();
+    }
+
+    /**
+     * Cursor for the page after this one, or null if this was the last page.
+     * SAP's own $skiptoken is preferred when the feed carries a next link.
+     */
+    public String nextCursor(int returned, ODataJsonTransformer.FeedInfo feedInfo) {
+        if (feedInfo.getNextLink() != null) {
+            String token = queryValue(feedInfo.getNextLink(), "$skiptoken");
+            if (token != null) {
+                return encodeCursor("t" + token);
+            }
+        }
+        if (skipToken != null) {
+            // Token-based paging without a next link means SAP has no more rows.
+            return null;
+        }
+        long nextSkip = skip + returned;
+        boolean more = feedInfo.getCount() >= 0 ? nextSkip < feedInfo.getCount() : returned == pageSize;
+        return more && returned > 0 ? encodeCursor("s" + nextSkip) : null;
+    }
+
+    private void decodeCursor(String cursor) {
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        if (decoded.startsWith("t") && decoded.length() > 1) {
+            skipToken = decoded.substring(1);
+        } else if (decoded.startsWith("s")) {
+            try {
+                skip = Long.parseLong(decoded.substring(1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+        } else {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    private static String encodeCursor(String value) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String queryValue(String href, String name) {
+        int q = href.indexOf('?');
+        if (q < 0) {
+            return null;
+        }
+        for (String pair : href.substring(q + 1).split("&")) {
+            if (pair.startsWith(name + "=")) {
+                return URLDecoder.decode(pair.substring(name.length() + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,187 @@
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Keeps a {@link SalesOrderIndex} in step with SAP from a single background thread.
+ *
+ * The first run, and every {@code fullSyncMillis} after it, loads all of the user's order
+ * headers and replaces the index; that also drops orders deleted in SAP, which a delta
+ * query cannot report. In between, only headers with
+ * {@code LastChangeDateTime gt <newest change seen>} are fetched and merged in. The
+ * threshold is moved back by a small overlap so changes saved in the same second as the
+ * last sync are not missed; fetching an order twice is harmless.
+ */
+public class SalesOrderSynchronizer {
+
+    private static final long OVERLAP_MILLIS = 2000;
+
+    private final ApiClient apiClient;
+    private final SalesOrderIndex index;
+    private final long intervalMillis;
+    private final long fullSyncMillis;
+    private final int pageSize;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean syncRequested = new AtomicBoolean();
+
+    // Only touched by the scheduler thread.
+    private long newestChange = Long.MIN_VALUE;
+    private long lastFullSync;
+
+    private volatile long lastSuccess;
+    private volatile long failures;
+    private volatile boolean lastSyncFailed;
+
+    public SalesOrderSynchronizer(ApiClient apiClient, SalesOrderIndex index, long intervalMillis, long fullSyncMillis, int pageSize) {
+        this.apiClient = apiClient;
+        this.index = index;
+        this.intervalMillis = intervalMillis;
+        this.fullSyncMillis = fullSyncMillis;
+        this.pageSize = pageSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "portal-index-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::syncSafely, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Asks for a delta sync soon, e.g. after the portal itself changed an order. Requests
+     * that arrive while one is already queued are merged into it.
+     */
+    public void requestSync() {
+        if (syncRequested.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                syncRequested.set(false);
+                syncSafely();
+            });
+        }
+    }
+
+    /** Epoch millis of the last successful sync, or 0. */
+    public long getLastSuccess() {
+        return lastSuccess;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    /** True if the latest sync failed, so the index may be out of date. */
+    public boolean isLastSyncFailed() {
+        return lastSyncFailed;
+    }
+
+    private void syncSafely() {
+        try {
+            sync();
+            lastSuccess = System.currentTimeMillis();
+            lastSyncFailed = false;
+        } catch (RuntimeException e) {
+            failures++;
+            // The index keeps serving its last state; the next run tries again. Warn once per outage.
+            if (lastSyncFailed) {
+                AsyncLogger.debug("Order index sync failed again: " + e);
+            } else {
+                AsyncLogger.warn("Order index sync failed: " + e);
+            }
+            lastSyncFailed = true;
+        }
+    }
+
+    private void sync() {
+        long now = System.currentTimeMillis();
+        boolean full = newestChange == Long.MIN_VALUE || now - lastFullSync >= fullSyncMillis;
+        // Quotes in an OData string literal are escaped by doubling them.
+        String filter = "CreatedByUser eq '" + apiClient.getUsername().replace("'", "''") + "'";
+        if (!full) {
+            Instant since = Instant.ofEpochMilli(newestChange - OVERLAP_MILLIS).truncatedTo(ChronoUnit.SECONDS);
+            filter += " and LastChangeDateTime gt datetimeoffset'" + since + "'";
+        }
+        String baseQuery = "$filter=" + encode(filter)
+                + "&$select=" + encode(String.join(",", SalesOrderIndex.PROPERTIES))
+                + "&$orderby=" + encode("SalesOrder asc");
+
+        long started = System.nanoTime();
+        List<JSONObject> headers = fetchAll(baseQuery);
+        long newest = newestChange;
+        for (JSONObject header : headers) {
+            newest = Math.max(newest, SalesOrderIndex.parseTimestamp(header.optString("LastChangeDateTime", "")));
+        }
+        if (full) {
+            index.replaceAll(headers);
+            lastFullSync = now;
+        } else if (!headers.isEmpty()) {
+            index.upsertAll(headers);
+        }
+        // With no orders at all there is no change time to go by; start the deltas from now.
+        newestChange = newest != Long.MIN_VALUE ? newest : now;
+        AsyncLogger.debug((full ? "Full" : "Delta") + " order index sync: " + headers.size() + " orders in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms, " + index.size() + " indexed.");
+    }
+
+    /** Reads every page, following SAP's $skiptoken when the Gateway pages on its own. */
+    private List<JSONObject> fetchAll(String baseQuery) {
+        List<JSONObject> headers = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int skip = 0;
+        String skipToken = null;
+        while (true) {
+            String query = baseQuery + "&$top=" + pageSize
+                    + (skipToken != null ? "&$skiptoken=" + encode(skipToken) : "&$skip=" + skip);
+            String body = apiClient.getSalesOrderFeedAsync(query).join();
+            ODataJsonTransformer.FeedInfo feedInfo = new ODataJsonTransformer.FeedInfo();
+            JSONArray results = new JSONObject(ODataJsonTransformer.toJson(body, SalesOrderIndex.PROPERTIES, feedInfo))
+                    .getJSONArray("results");
+            for (int i = 0; i < results.length(); i++) {
+                JSONObject header = results.getJSONObject(i);
+                // Orders created or deleted while paging shift the later pages; keep each order once.
+                if (seen.add(header.optString("SalesOrder"))) {
+                    headers.add(header);
+                }
+            }
+            String nextToken = feedInfo.getNextLink() != null ? skipTokenOf(feedInfo.getNextLink()) : null;
+            if (nextToken != null) {
+                skipToken = nextToken;
+            } else if (skipToken == null && results.length() == pageSize) {
+                skip += pageSize;
+            } else {
+                return headers;
+            }
+        }
+    }
+
+    private static String skipTokenOf(String nextLink) {
+        int start = nextLink.indexOf("$skiptoken=");
+        if (start < 0) {
+            return null;
+        }
+        int end = nextLink.indexOf('&', start);
+        String value = nextLink.substring(start + "$skiptoken=".length(), end < 0 ? nextLink.length() : end);
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
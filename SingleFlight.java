@@ -0,0 +1,57 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates identical concurrent calls: while a call for a key is in flight,
+ * other callers with the same key share its result (or its failure) instead of
+ * starting their own upstream request.
+ */
+public class SingleFlight<V> {
+
+    private final ConcurrentHashMap<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Starts the call unless one with the same key is already running. Every caller gets
+     * its own copy of the shared future, so one caller cancelling does not affect the others.
+     */
+    public CompletableFuture<V> execute(String key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> ours = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, ours);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing.copy();
+        }
+
+        executed.incrementAndGet();
+        CompletableFuture<V> upstream;
+        try {
+            upstream = call.get();
+        } catch (RuntimeException e) {
+            upstream = CompletableFuture.failedFuture(e);
+        }
+        upstream.whenComplete((result, error) -> {
+            // Remove first so callers arriving after completion start a fresh call.
+            inFlight.remove(key, ours);
+            if (error != null) {
+                ours.completeExceptionally(error);
+            } else {
+                ours.complete(result);
+            }
+        });
+        return ours.copy();
+    }
+
+    /** Number of calls that actually went upstream. */
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    /** Number of calls that were served by another caller's in-flight request. */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+}
@@ -1,10 +1,23 @@
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
 
 public class StaticHandler implements HttpHandler {
 
@@ -19,6 +32,41 @@ public class StaticHandler implements HttpHandler {
         "gif", "image/gif"
     );
 
+    // The portal's own assets, loaded when the server starts. Nothing else is served: the
+    // classpath also holds the classes, portal.properties (with the SAP password) and the write log.
+    private static final List<String> ASSETS = List.of(
+        "index.html", "script.js", "style.css", "sap.png", "userL.png"
+    );
+
+    /** A file read once into memory, with its validators and an optional gzip variant. */
+    private static final class Asset {
+        final byte[] bytes;
+        final byte[] gzipBytes; // null when compression does not pay off (e.g. PNG)
+        final String etag;
+        final String gzipETag;
+        final String mimeType;
+
+        Asset(byte[] bytes, byte[] gzipBytes, String etag, String mimeType) {
+            this.bytes = bytes;
+            this.gzipBytes = gzipBytes;
+            this.etag = "\"" + etag + "\"";
+            this.gzipETag = "\"" + etag + "-gz\"";
+            this.mimeType = mimeType;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Asset> assets = new ConcurrentHashMap<>();
+    // Assets never change while the server runs, so the start time is their Last-Modified.
+    private final ZonedDateTime lastModified = ZonedDateTime.now(ZoneOffset.UTC).truncatedTo(ChronoUnit.SECONDS);
+    private final String lastModifiedHeader = DateTimeFormatter.RFC_1123_DATE_TIME.format(lastModified);
+    private final long maxAgeSeconds = Long.getLong("portal.static.maxAgeSeconds", 300L);
+
+    public StaticHandler() {
+        for (String resourcePath : ASSETS) {
+            lookup(resourcePath);
+        }
+    }
+
     @Override
     public void handle(HttpExchange exchange) throws IOException {
         URI requestedUri = exchange.getRequestURI();
@@ -33,33 +81,156 @@ public class StaticHandler implements HttpHandler {
         // to find the file in our resources folder.
         String resourcePath = path.substring(1);
 
-        try (InputStream is = getClass().getClassLoader().getResourceAsStream(resourcePath)) {
-            if (is == null) {
+        try {
+            Asset asset = lookup(resourcePath);
+            if (asset == null) {
                 // If the file is not found, send a 404 error
                 sendErrorResponse(exchange, 404, "404 - File Not Found");
                 return;
             }
             
-            // Get the correct MIME type for the file extension
-            String mimeType = getMimeType(path);
+            boolean gzip = asset.gzipBytes != null && acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            byte[] body = gzip ? asset.gzipBytes : asset.bytes;
+            String etag = gzip ? asset.gzipETag : asset.etag;
 
-            // Read the file's content into a byte array
-            byte[] fileBytes = is.readAllBytes();
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Last-Modified", lastModifiedHeader);
+            // HTML is always revalidated so a new deployment is picked up; the rest may be reused for a while.
+            exchange.getResponseHeaders().set("Cache-Control",
+                    asset.mimeType.startsWith("text/html") ? "no-cache" : "public, max-age=" + maxAgeSeconds);
+            if (asset.gzipBytes != null) {
+                exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            }
+
+            if (isNotModified(exchange, asset)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
             
             // Send the successful response
-            exchange.getResponseHeaders().set("Content-Type", mimeType);
-            exchange.sendResponseHeaders(200, fileBytes.length);
+            exchange.getResponseHeaders().set("Content-Type", asset.mimeType);
+            if (gzip) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            if ("HEAD".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
             try (OutputStream os = exchange.getResponseBody()) {
-                os.write(fileBytes);
+                os.write(body);
             }
 
         } catch (Exception e) {
             // Handle any other errors that might occur
-            e.printStackTrace();
+            AsyncLogger.error("Could not serve " + path, e);
             sendErrorResponse(exchange, 500, "500 - Internal Server Error");
         }
     }
 
+    /**
+     * Returns the cached asset, reading it from the classpath the first time; null if it is not
+     * one of {@link #ASSETS} or does not exist. Missing paths are not remembered, so random URLs
+     * cannot grow the cache.
+     */
+    private Asset lookup(String resourcePath) {
+        if (!ASSETS.contains(resourcePath)) {
+            return null;
+        }
+        Asset asset = assets.get(resourcePath);
+        if (asset == null) {
+            asset = load(resourcePath);
+            if (asset != null) {
+                Asset existing = assets.putIfAbsent(resourcePath, asset);
+                asset = existing != null ? existing : asset;
+            }
+        }
+        return asset;
+    }
+
+    private Asset load(String resourcePath) {
+        try (InputStream is = getClass().getClassLoader().getResourceAsStream(resourcePath)) {
+            if (is == null) {
+                return null;
+            }
+            // Read the file's content into a byte array, once
+            byte[] bytes = is.readAllBytes();
+            String mimeType = getMimeType(resourcePath);
+            byte[] gzipBytes = isCompressible(mimeType) ? gzip(bytes) : null;
+            if (gzipBytes != null && gzipBytes.length >= bytes.length) {
+                gzipBytes = null;
+            }
+            return new Asset(bytes, gzipBytes, contentHash(bytes), mimeType);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean isNotModified(HttpExchange exchange, Asset asset) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-None-Match takes precedence over If-Modified-Since.
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(asset.etag) || tag.equals(asset.gzipETag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                ZonedDateTime since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return !lastModified.isAfter(since);
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /** Also used by ApiHandler. */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                // "gzip;q=0" explicitly refuses gzip.
+                return !(parts.length > 1 && parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?"));
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCompressible(String mimeType) {
+        return mimeType.startsWith("text/") || mimeType.startsWith("application/javascript");
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+            gzip.write(bytes);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static String contentHash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 22);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
     private String getMimeType(String path) {
         // Find the last dot to get the file extension
         int lastDotIndex = path.lastIndexOf('.');
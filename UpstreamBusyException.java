@@ -0,0 +1,12 @@
+/**
+ * Thrown when a call to SAP is refused locally because too many upstream calls
+ * are already outstanding. ApiHandler answers it with 503 Service Unavailable.
+ */
+public class UpstreamBusyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UpstreamBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * Thrown when SAP answers with an error status. Carries the status code so callers can
+ * tell a Gateway outage (5xx) apart from a rejected request (4xx).
+ */
+public class UpstreamStatusException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public UpstreamStatusException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public boolean isServerError() {
+        return statusCode >= 500;
+    }
+}
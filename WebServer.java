@@ -1,26 +1,114 @@
 import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 public class WebServer {
 
 	public static void main(String[] args) throws IOException {
-		// TODO Auto-generated method stub
-		int port = 8080;
+		PortalConfig.load();
+		int port = Integer.getInteger("portal.port", 8080);
+        start(port, new ApiHandler());
+
+        AsyncLogger.info("Open your browser and go to http://localhost:" + port);
+
+	}
+
+    /**
+     * Creates and starts the portal server with the given API handler. Also used by the
+     * load generator, which points the handler at a local SAP Gateway stand-in.
+     */
+    public static HttpServer start(int port, ApiHandler apiHandler) throws IOException {
+        // Executor mode: "virtual" (one virtual thread per request, falls back to the
+        // fixed pool on JDKs without Loom), "fixed" (bounded platform pool) or
+        // "default" (the single HttpServer dispatcher thread, the old behaviour).
+        String executorMode = System.getProperty("portal.executor", "virtual");
+        int apiMaxConcurrent = Integer.getInteger("portal.api.maxConcurrent", 64);
+        int staticMaxConcurrent = Integer.getInteger("portal.static.maxConcurrent", 128);
+        long maxWaitMillis = Long.getLong("portal.maxWaitMillis", 2000L);
+        int shutdownGraceSeconds = Integer.getInteger("portal.shutdown.graceSeconds", 10);
+
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 
         // This context serves your main HTML page
-     //   server.createContext("/", new RootHandler());
-        server.createContext("/", new StaticHandler());
-        
+        server.createContext("/", new ConcurrencyLimitHandler(new StaticHandler(), staticMaxConcurrent, maxWaitMillis));
+
         // This context will use your ApiClient to get SAP data
-    //    server.createContext("/api/sales-orders", new ApiHandler());
-        server.createContext("/api/", new ApiHandler());
-        server.setExecutor(null); // Use the default executor
+        server.createContext("/api/", new ConcurrencyLimitHandler(apiHandler, apiMaxConcurrent, maxWaitMillis));
+
+        // Prometheus scrape endpoint; deliberately outside the concurrency limits.
+        server.createContext("/metrics", new MetricsHandler());
+
+        // Server-Sent Events; long-lived, so they must not hold /api/ slots.
+        OrderEventHub orderEvents = apiHandler.getOrderEvents();
+        server.createContext("/events", apiHandler.getEventsHandler());
+
+        ExecutorService executor = createExecutor(executorMode);
+        server.setExecutor(executor); // null means the default dispatcher thread
         server.start();
-        
-        System.out.println("Server started on port " + port);
-        System.out.println("Open your browser and go to http://localhost:" + port);
 
-	}
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(server, executor, orderEvents, shutdownGraceSeconds), "portal-shutdown"));
+
+        AsyncLogger.info("Server started on port " + port + " (executor: " + executorMode + ")");
+        return server;
+    }
+
+    private static ExecutorService createExecutor(String mode) {
+        switch (mode.toLowerCase()) {
+            case "default":
+                return null;
+            case "fixed":
+                return newFixedExecutor();
+            case "virtual":
+                return newVirtualThreadExecutor();
+            default:
+                throw new IllegalArgumentException("Unknown portal.executor mode: " + mode);
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        // Looked up reflectively so the server still compiles and runs on JDK 17.
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Platform threads are not cheap enough to start one per request without a bound.
+            AsyncLogger.warn("Virtual threads not available on this JDK, using a fixed thread pool.");
+            return newFixedExecutor();
+        }
+    }
+
+    private static ExecutorService newFixedExecutor() {
+        int threads = Integer.getInteger("portal.threads", Runtime.getRuntime().availableProcessors() * 8);
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Stops accepting new connections, waits for in-flight exchanges to finish
+     * (up to the grace period) and then drains the executor.
+     */
+    private static void shutdown(HttpServer server, ExecutorService executor, OrderEventHub orderEvents, int graceSeconds) {
+        AsyncLogger.info("Shutting down, draining in-flight requests...");
+        // Event streams never finish on their own.
+        orderEvents.close();
+        server.stop(graceSeconds);
+        if (executor == null) {
+            AsyncLogger.flush(1000);
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(graceSeconds, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        AsyncLogger.info("Server stopped.");
+        AsyncLogger.flush(1000);
+    }
 
 }
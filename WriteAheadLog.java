@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An append-only file of JSON records, used to remember queued SAP writes across restarts.
+ *
+ * Each record is framed as {@code [length][CRC32][UTF-8 JSON]}. A crash in the middle of an
+ * append leaves a short or corrupt last record; {@link #open} stops reading there and cuts
+ * the file back to the last complete record, so the next append starts on a clean boundary.
+ * With {@code sync} enabled every append is forced to disk before it returns.
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final boolean sync;
+    private final List<JSONObject> recovered;
+
+    private WriteAheadLog(Path file, FileChannel channel, boolean sync, List<JSONObject> recovered) {
+        this.file = file;
+        this.channel = channel;
+        this.sync = sync;
+        this.recovered = recovered;
+    }
+
+    /** Opens or creates the log and reads back every complete record. */
+    public static WriteAheadLog open(Path file, boolean sync) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        List<JSONObject> records = new ArrayList<>();
+        long validEnd = readRecords(channel, records);
+        if (validEnd < channel.size()) {
+            AsyncLogger.warn("Write log " + file + " ends with an incomplete record; discarding "
+                    + (channel.size() - validEnd) + " bytes.");
+            channel.truncate(validEnd);
+        }
+        channel.position(validEnd);
+        return new WriteAheadLog(file, channel, sync, records);
+    }
+
+    private static long readRecords(FileChannel channel, List<JSONObject> records) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long position = 0;
+        long size = channel.size();
+        while (position + HEADER_BYTES <= size) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || length > MAX_RECORD_BYTES || position + HEADER_BYTES + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            channel.read(payload, position + HEADER_BYTES);
+            if (crc(payload.array()) != checksum) {
+                break;
+            }
+            try {
+                records.add(new JSONObject(new String(payload.array(), StandardCharsets.UTF_8)));
+            } catch (JSONException e) {
+                break;
+            }
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    /** The records found when the log was opened, oldest first. */
+    public List<JSONObject> getRecoveredRecords() {
+        return recovered;
+    }
+
+    public synchronized void append(JSONObject record) throws IOException {
+        byte[] payload = record.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        buffer.putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+    }
+
+    public synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    /** Empties the log. Only safe when none of its records are needed any more. */
+    public synchronized void clear() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        if (sync) {
+            channel.force(true);
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+}
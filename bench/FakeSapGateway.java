@@ -0,0 +1,513 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONObject;
+
+/**
+ * A local stand-in for the SAP Gateway API_SALES_ORDER_SRV OData v2 service, for benchmarks
+ * and load tests. It serves Atom XML for the order list, headers and items, honours ETags
+ * (If-None-Match / If-Match), enforces CSRF tokens on writes and understands $batch.
+ *
+ * Latency, data volume, item text size and CSRF token lifetime are configurable, so the
+ * portal can be measured against a slow WAN Gateway or a fast local one.
+ * Change sets in $batch are applied one by one, not atomically.
+ *
+ * Run standalone: {@code java FakeSapGateway [port]}.
+ */
+public class FakeSapGateway {
+
+    public static final String SERVICE_PATH = "/sap/opu/odata/sap/API_SALES_ORDER_SRV/";
+    private static final String SESSION_COOKIE = "SAP_SESSIONID_FAK_100";
+
+    private static final Pattern ENTITY = Pattern.compile("A_SalesOrder\\('(\\d+)'\\)");
+    private static final Pattern ITEMS = Pattern.compile("A_SalesOrder\\('(\\d+)'\\)/to_Item");
+    private static final Pattern ITEM = Pattern.compile("A_SalesOrderItem\\(SalesOrder='(\\d+)',SalesOrderItem='(\\d+)'\\)");
+    // Quotes are already stripped by parseQuery().
+    private static final Pattern CHANGED_SINCE = Pattern.compile("LastChangeDateTime gt datetimeoffset(\\S+)");
+    private static final long INITIAL_CHANGE_TIME = Instant.parse("2026-01-01T00:00:00Z").toEpochMilli();
+
+    /** Tunables for one gateway instance. */
+    public static final class Config {
+        public long latencyMillis = 50;
+        public long latencyJitterMillis = 10;
+        public int orders = 1_000;
+        public int itemsPerOrder = 10;
+        public int itemTextBytes = 200;
+        public int serverPageSize = 500;
+        public long csrfTokenLifetimeMillis = 30 * 60 * 1000L;
+        public String user = "HZIDANI";
+    }
+
+    private static final class Order {
+        final String id;
+        final List<String> items = new ArrayList<>();
+        String purchaseOrder;
+        long version = 1;
+        long created;
+        volatile long lastChange;
+
+        Order(String id, int itemCount) {
+            this.id = id;
+            this.purchaseOrder = "PO-" + id;
+            for (int i = 1; i <= itemCount; i++) {
+                items.add(String.valueOf(i * 10));
+            }
+        }
+
+        /** A change: new ETag version and LastChangeDateTime. Call while holding the lock. */
+        void touch() {
+            version++;
+            lastChange = System.currentTimeMillis();
+        }
+
+        synchronized String etag() {
+            return "W/\"datetimeoffset'v" + version + "'\"";
+        }
+    }
+
+    private static final class Result {
+        final int status;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        final String body;
+
+        Result(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        Result header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    private final Config config;
+    private final ConcurrentHashMap<String, Order> orders = new ConcurrentHashMap<>();
+    private final List<String> orderIdsDescending = new ArrayList<>();
+    private final ConcurrentHashMap<String, Long> csrfTokens = new ConcurrentHashMap<>();
+    // As in SAP, a CSRF token is only valid together with the session cookie it was fetched with.
+    private final ConcurrentHashMap<String, String> csrfSessions = new ConcurrentHashMap<>();
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong nextOrderId;
+    private final AtomicLong requests = new AtomicLong();
+    private final String itemText;
+    private HttpServer server;
+    private ExecutorService executor;
+    private volatile boolean outage;
+
+    public FakeSapGateway(Config config) {
+        this.config = config;
+        long firstId = 1_000_000;
+        for (int i = 0; i < config.orders; i++) {
+            String id = String.valueOf(firstId + i);
+            Order order = new Order(id, config.itemsPerOrder);
+            order.created = INITIAL_CHANGE_TIME + i * 60_000L;
+            order.lastChange = order.created;
+            orders.put(id, order);
+            orderIdsDescending.add(0, id);
+        }
+        this.nextOrderId = new AtomicLong(firstId + config.orders);
+        this.itemText = "x".repeat(Math.max(0, config.itemTextBytes));
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext(SERVICE_PATH, this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getServiceUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + SERVICE_PATH;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /** Number of SAP sessions (session cookies) handed out. */
+    public long getSessionCount() {
+        return sessions.get();
+    }
+
+    /** While set, every request is answered with 503, as during a Gateway incident. */
+    public void setOutage(boolean outage) {
+        this.outage = outage;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            simulateLatency();
+            if (outage) {
+                send(exchange, new Result(503, "Service Unavailable"));
+                return;
+            }
+            String method = exchange.getRequestMethod().toUpperCase(Locale.ROOT);
+            String rawPath = exchange.getRequestURI().getRawPath().substring(SERVICE_PATH.length());
+            String rawQuery = exchange.getRequestURI().getRawQuery();
+            Map<String, String> headers = new LinkedHashMap<>();
+            exchange.getRequestHeaders().forEach((name, values) -> headers.put(name.toLowerCase(Locale.ROOT), values.get(0)));
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+
+            Result result;
+            String session = sessionOf(headers.get("cookie"));
+            if ("fetch".equalsIgnoreCase(headers.get("x-csrf-token"))) {
+                String token = UUID.randomUUID().toString();
+                result = new Result(200, "").header("x-csrf-token", token);
+                if (session == null) {
+                    session = UUID.randomUUID().toString();
+                    sessions.incrementAndGet();
+                    result.header("set-cookie", SESSION_COOKIE + "=" + session + "; path=/");
+                }
+                csrfTokens.put(token, System.currentTimeMillis() + config.csrfTokenLifetimeMillis);
+                csrfSessions.put(token, session);
+            } else if (!"GET".equals(method) && !isValidCsrfToken(headers.get("x-csrf-token"), session)) {
+                result = new Result(403, "CSRF token validation failed").header("x-csrf-token", "Required");
+            } else if ("POST".equals(method) && rawPath.equals("$batch")) {
+                result = handleBatch(headers.get("content-type"), body);
+            } else {
+                result = dispatch(method, rawPath, rawQuery, headers, body);
+            }
+            send(exchange, result);
+        } catch (RuntimeException e) {
+            send(exchange, new Result(500, "Fake gateway error: " + e.getMessage()));
+        }
+    }
+
+    private void simulateLatency() {
+        long jitter = config.latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextLong(config.latencyJitterMillis + 1) : 0;
+        long delay = config.latencyMillis + jitter;
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean isValidCsrfToken(String token, String session) {
+        Long expiresAt = token == null ? null : csrfTokens.get(token);
+        return expiresAt != null && System.currentTimeMillis() < expiresAt && csrfSessions.get(token).equals(session);
+    }
+
+    private static String sessionOf(String cookieHeader) {
+        if (cookieHeader == null) {
+            return null;
+        }
+        for (String cookie : cookieHeader.split(";")) {
+            String trimmed = cookie.trim();
+            if (trimmed.startsWith(SESSION_COOKIE + "=")) {
+                return trimmed.substring(SESSION_COOKIE.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private Result dispatch(String method, String rawPath, String rawQuery, Map<String, String> headers, String body) {
+        String path = URLDecoder.decode(rawPath, StandardCharsets.UTF_8);
+        Matcher m;
+        if ("GET".equals(method) && path.isEmpty()) {
+            return new Result(200, "<service/>");
+        }
+        if ("GET".equals(method) && path.equals("A_SalesOrder")) {
+            return listOrders(parseQuery(rawQuery));
+        }
+        if ((m = ITEMS.matcher(path)).matches() && "GET".equals(method)) {
+            Order order = orders.get(m.group(1));
+            return order == null ? notFound() : new Result(200, itemsFeed(order)).header("Content-Type", "application/atom+xml;type=feed");
+        }
+        if ((m = ENTITY.matcher(path)).matches()) {
+            Order order = orders.get(m.group(1));
+            if (order == null) {
+                return notFound();
+            }
+            if ("GET".equals(method)) {
+                String etag = order.etag();
+                if (etag.equals(headers.get("if-none-match"))) {
+                    return new Result(304, "").header("ETag", etag);
+                }
+                return new Result(200, entryDocument(order)).header("ETag", etag).header("Content-Type", "application/atom+xml;type=entry");
+            }
+            if ("MERGE".equals(method) || "PATCH".equals(method)) {
+                synchronized (order) {
+                    if (!order.etag().equals(headers.get("if-match"))) {
+                        return new Result(412, "Precondition Failed");
+                    }
+                    order.purchaseOrder = new JSONObject(body).optString("PurchaseOrderByCustomer", order.purchaseOrder);
+                    order.touch();
+                    return new Result(204, "").header("ETag", order.etag());
+                }
+            }
+        }
+        if ((m = ITEM.matcher(path)).matches() && "DELETE".equals(method)) {
+            Order order = orders.get(m.group(1));
+            if (order == null) {
+                return notFound();
+            }
+            synchronized (order) {
+                if (!order.items.remove(m.group(2))) {
+                    return notFound();
+                }
+                order.touch();
+                return new Result(204, "");
+            }
+        }
+        if ("POST".equals(method) && path.equals("A_SalesOrder")) {
+            String id = String.valueOf(nextOrderId.getAndIncrement());
+            JSONObject payload = new JSONObject(body);
+            Order order = new Order(id, payload.has("to_Item") ? payload.getJSONArray("to_Item").length() : 1);
+            order.purchaseOrder = payload.optString("PurchaseOrderByCustomer", order.purchaseOrder);
+            order.created = System.currentTimeMillis();
+            order.lastChange = order.created;
+            orders.put(id, order);
+            synchronized (orderIdsDescending) {
+                orderIdsDescending.add(0, id);
+            }
+            JSONObject created = new JSONObject().put("d", new JSONObject().put("SalesOrder", id)
+                    .put("PurchaseOrderByCustomer", order.purchaseOrder));
+            return new Result(201, created.toString()).header("Content-Type", "application/json").header("ETag", order.etag());
+        }
+        return notFound();
+    }
+
+    private Result listOrders(Map<String, String> query) {
+        int top = Integer.parseInt(query.getOrDefault("$top", String.valueOf(config.serverPageSize)));
+        int skip = Integer.parseInt(query.getOrDefault("$skip", query.getOrDefault("$skiptoken", "0")));
+        int pageSize = Math.min(top, config.serverPageSize);
+
+        List<String> ids;
+        synchronized (orderIdsDescending) {
+            ids = new ArrayList<>(orderIdsDescending);
+        }
+        if (query.getOrDefault("$orderby", "SalesOrder desc").endsWith("asc")) {
+            java.util.Collections.reverse(ids);
+        }
+        // The only filter the index synchronizer needs: LastChangeDateTime gt datetimeoffset'...'.
+        Matcher changedSince = CHANGED_SINCE.matcher(query.getOrDefault("$filter", ""));
+        if (changedSince.find()) {
+            long since = Instant.parse(changedSince.group(1)).toEpochMilli();
+            ids.removeIf(id -> orders.get(id).lastChange <= since);
+        }
+        int end = Math.min(ids.size(), skip + pageSize);
+
+        StringBuilder xml = new StringBuilder(feedStart("A_SalesOrder"));
+        if ("allpages".equals(query.get("$inlinecount"))) {
+            xml.append("<m:count>").append(ids.size()).append("</m:count>");
+        }
+        for (int i = skip; i < end; i++) {
+            appendOrderEntry(xml, orders.get(ids.get(i)));
+        }
+        // Server-driven paging when the client asked for more than one server page.
+        if (top > config.serverPageSize && end < ids.size()) {
+            xml.append("<link rel=\"next\" href=\"A_SalesOrder?$skiptoken=").append(end).append("\"/>");
+        }
+        xml.append("</feed>");
+        return new Result(200, xml.toString()).header("Content-Type", "application/atom+xml;type=feed");
+    }
+
+    private Result handleBatch(String contentType, String body) {
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + 9).trim();
+        String responseBoundary = "batchresponse_" + UUID.randomUUID();
+        StringBuilder out = new StringBuilder();
+        for (String part : splitMultipart(body, boundary)) {
+            out.append("--").append(responseBoundary).append("\r\n");
+            int headerEnd = part.indexOf("\n\n");
+            String partHeaders = part.substring(0, headerEnd).toLowerCase(Locale.ROOT);
+            String content = part.substring(headerEnd + 2);
+            if (partHeaders.contains("multipart/mixed")) {
+                String changeSetBoundary = part.substring(part.indexOf("boundary=") + 9, headerEnd).trim();
+                String responseChangeSet = "changesetresponse_" + UUID.randomUUID();
+                out.append("Content-Type: multipart/mixed; boundary=").append(responseChangeSet).append("\r\n\r\n");
+                for (String operation : splitMultipart(content, changeSetBoundary)) {
+                    out.append("--").append(responseChangeSet).append("\r\n");
+                    appendBatchResult(out, executeBatchOperation(operation));
+                }
+                out.append("--").append(responseChangeSet).append("--\r\n\r\n");
+            } else {
+                appendBatchResult(out, executeBatchOperation(part));
+            }
+        }
+        out.append("--").append(responseBoundary).append("--\r\n");
+        return new Result(202, out.toString()).header("Content-Type", "multipart/mixed; boundary=" + responseBoundary);
+    }
+
+    private Result executeBatchOperation(String part) {
+        // Skip the MIME headers of the part, then read the embedded HTTP request.
+        String request = part.substring(part.indexOf("\n\n") + 2);
+        int requestHeaderEnd = request.indexOf("\n\n");
+        String[] lines = request.substring(0, requestHeaderEnd < 0 ? request.length() : requestHeaderEnd).split("\n");
+        String[] requestLine = lines[0].trim().split(" ");
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+        }
+        String body = requestHeaderEnd < 0 ? "" : request.substring(requestHeaderEnd + 2).trim();
+        String target = requestLine[1];
+        int q = target.indexOf('?');
+        return dispatch(requestLine[0], q < 0 ? target : target.substring(0, q), q < 0 ? null : target.substring(q + 1), headers, body);
+    }
+
+    private static void appendBatchResult(StringBuilder out, Result result) {
+        out.append("Content-Type: application/http\r\nContent-Transfer-Encoding: binary\r\n\r\n");
+        out.append("HTTP/1.1 ").append(result.status).append(' ').append(result.status < 300 ? "OK" : "Error").append("\r\n");
+        result.headers.forEach((name, value) -> out.append(name).append(": ").append(value).append("\r\n"));
+        out.append("\r\n").append(result.body).append("\r\n");
+    }
+
+    private static List<String> splitMultipart(String body, String boundary) {
+        String normalized = body.replace("\r\n", "\n");
+        List<String> parts = new ArrayList<>();
+        String delimiter = "--" + boundary;
+        int pos = normalized.indexOf(delimiter);
+        while (pos >= 0) {
+            int start = pos + delimiter.length();
+            if (normalized.startsWith("--", start)) {
+                break;
+            }
+            int next = normalized.indexOf(delimiter, start);
+            parts.add(normalized.substring(start, next < 0 ? normalized.length() : next).replaceFirst("^\n", ""));
+            pos = next;
+        }
+        return parts;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new LinkedHashMap<>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8).replace("'", ""));
+                }
+            }
+        }
+        return query;
+    }
+
+    private String feedStart(String title) {
+        return "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<feed xmlns=\"http://www.w3.org/2005/Atom\""
+                + " xmlns:m=\"http://schemas.microsoft.com/ado/2007/08/dataservices/metadata\""
+                + " xmlns:d=\"http://schemas.microsoft.com/ado/2007/08/dataservices\">"
+                + "<id>" + SERVICE_PATH + title + "</id><title type=\"text\">" + title + "</title>";
+    }
+
+    private String entryDocument(Order order) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        appendOrderEntry(xml, order);
+        // The standalone entry needs the namespace declarations on its root element.
+        int insertAt = xml.indexOf("<entry") + "<entry".length();
+        xml.insert(insertAt, " xmlns=\"http://www.w3.org/2005/Atom\""
+                + " xmlns:m=\"http://schemas.microsoft.com/ado/2007/08/dataservices/metadata\""
+                + " xmlns:d=\"http://schemas.microsoft.com/ado/2007/08/dataservices\"");
+        return xml.toString();
+    }
+
+    private void appendOrderEntry(StringBuilder xml, Order order) {
+        synchronized (order) {
+            xml.append("<entry m:etag=\"").append(order.etag().replace("\"", "&quot;")).append("\">")
+                    .append("<id>A_SalesOrder('").append(order.id).append("')</id>")
+                    .append("<link rel=\"edit\" href=\"A_SalesOrder('").append(order.id).append("')\"/>")
+                    .append("<content type=\"application/xml\"><m:properties>");
+            property(xml, "SalesOrder", order.id);
+            property(xml, "SalesOrderType", "OR");
+            property(xml, "SalesOrganization", "1710");
+            property(xml, "DistributionChannel", "10");
+            property(xml, "OrganizationDivision", "00");
+            property(xml, "SoldToParty", String.valueOf(17100001 + Long.parseLong(order.id) % 20));
+            property(xml, "PurchaseOrderByCustomer", order.purchaseOrder);
+            property(xml, "TotalNetAmount", String.valueOf(order.items.size() * 100) + ".00");
+            property(xml, "TransactionCurrency", "USD");
+            property(xml, "CreatedByUser", config.user);
+            property(xml, "CreationDate", LocalDate.ofInstant(Instant.ofEpochMilli(order.created), ZoneOffset.UTC) + "T00:00:00");
+            property(xml, "LastChangeDateTime", Instant.ofEpochMilli(order.lastChange).toString());
+            xml.append("</m:properties></content></entry>");
+        }
+    }
+
+    private String itemsFeed(Order order) {
+        StringBuilder xml = new StringBuilder(feedStart("A_SalesOrderItem"));
+        synchronized (order) {
+            for (String item : order.items) {
+                xml.append("<entry><id>A_SalesOrderItem(SalesOrder='").append(order.id)
+                        .append("',SalesOrderItem='").append(item).append("')</id>")
+                        .append("<content type=\"application/xml\"><m:properties>");
+                property(xml, "SalesOrder", order.id);
+                property(xml, "SalesOrderItem", item);
+                property(xml, "Material", "TG11");
+                property(xml, "SalesOrderItemText", itemText);
+                property(xml, "RequestedQuantity", "1.000");
+                property(xml, "RequestedQuantityUnit", "PC");
+                property(xml, "NetAmount", "100.00");
+                property(xml, "TransactionCurrency", "USD");
+                xml.append("</m:properties></content></entry>");
+            }
+        }
+        return xml.append("</feed>").toString();
+    }
+
+    private static void property(StringBuilder xml, String name, String value) {
+        xml.append("<d:").append(name).append('>').append(value).append("</d:").append(name).append('>');
+    }
+
+    private static Result notFound() {
+        return new Result(404, "Resource not found");
+    }
+
+    private static void send(HttpExchange exchange, Result result) throws IOException {
+        result.headers.forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+        byte[] bytes = result.body.getBytes(StandardCharsets.UTF_8);
+        boolean noBody = bytes.length == 0 || result.status == 204 || result.status == 304;
+        exchange.sendResponseHeaders(result.status, noBody ? -1 : bytes.length);
+        if (!noBody) {
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+        exchange.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8090;
+        Config config = new Config();
+        config.latencyMillis = Long.getLong("fake.latencyMillis", config.latencyMillis);
+        config.orders = Integer.getInteger("fake.orders", config.orders);
+        config.itemsPerOrder = Integer.getInteger("fake.itemsPerOrder", config.itemsPerOrder);
+        config.itemTextBytes = Integer.getInteger("fake.itemTextBytes", config.itemTextBytes);
+        FakeSapGateway gateway = new FakeSapGateway(config);
+        gateway.start(port);
+        System.out.println("Fake SAP Gateway listening on " + gateway.getServiceUrl());
+    }
+}
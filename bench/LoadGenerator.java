@@ -0,0 +1,175 @@
+import com.sun.net.httpserver.HttpServer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test: starts a {@link FakeSapGateway}, starts the portal against it and
+ * drives the portal with closed-loop virtual users (each sends a request, waits for the
+ * answer, then sends the next) over a mix of the endpoints the browser uses.
+ *
+ * Prints throughput, latency percentiles and error counts per endpoint and overall.
+ * Tunables are system properties: load.users, load.seconds, load.warmupSeconds and the
+ * fake.* gateway settings (see {@link FakeSapGateway#main}).
+ */
+public class LoadGenerator {
+
+    private static final String[] ENDPOINTS = {
+            "/api/sales-orders/page?size=20&format=json",
+            "/api/sales-order/{id}/full?format=json",
+            "/api/sales-order/{id}",
+            "/api/sales-order/{id}/items",
+            "/index.html"
+    };
+    // Relative weights of the endpoints above; detail views dominate as in the browser.
+    private static final int[] WEIGHTS = {2, 5, 1, 1, 1};
+
+    public static void main(String[] args) throws Exception {
+        int users = Integer.getInteger("load.users", 32);
+        int seconds = Integer.getInteger("load.seconds", 30);
+        int warmupSeconds = Integer.getInteger("load.warmupSeconds", 5);
+        int gatewayPort = Integer.getInteger("fake.port", 8090);
+        int portalPort = Integer.getInteger("portal.port", 8081);
+
+        FakeSapGateway.Config config = new FakeSapGateway.Config();
+        config.latencyMillis = Long.getLong("fake.latencyMillis", config.latencyMillis);
+        config.orders = Integer.getInteger("fake.orders", config.orders);
+        config.itemsPerOrder = Integer.getInteger("fake.itemsPerOrder", config.itemsPerOrder);
+        config.itemTextBytes = Integer.getInteger("fake.itemTextBytes", config.itemTextBytes);
+        FakeSapGateway gateway = new FakeSapGateway(config);
+        gateway.start(gatewayPort);
+
+        HttpServer portal = WebServer.start(portalPort,
+                new ApiHandler(new ApiClient(gateway.getServiceUrl(), config.user, "secret")));
+        String baseUrl = "http://localhost:" + portalPort;
+
+        HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(Executors.newFixedThreadPool(Math.max(4, users / 4)))
+                .build();
+
+        System.out.println("Warming up for " + warmupSeconds + "s with " + users + " users...");
+        runPhase(client, baseUrl, users, warmupSeconds, config.orders, null);
+
+        Stats[] stats = new Stats[ENDPOINTS.length];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new Stats();
+        }
+        System.out.println("Measuring for " + seconds + "s...");
+        long gatewayRequestsBefore = gateway.getRequestCount();
+        runPhase(client, baseUrl, users, seconds, config.orders, stats);
+        long gatewayRequests = gateway.getRequestCount() - gatewayRequestsBefore;
+
+        Stats total = new Stats();
+        System.out.printf("%-45s %9s %8s %8s %8s %8s %7s%n", "endpoint", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "errors");
+        for (int i = 0; i < ENDPOINTS.length; i++) {
+            print(ENDPOINTS[i], stats[i], seconds);
+            total.merge(stats[i]);
+        }
+        print("TOTAL", total, seconds);
+        System.out.printf("Gateway requests: %d (%.2f per portal request)%n",
+                gatewayRequests, total.count() == 0 ? 0.0 : (double) gatewayRequests / total.count());
+
+        portal.stop(0);
+        gateway.stop();
+        System.exit(0);
+    }
+
+    private static void runPhase(HttpClient client, String baseUrl, int users, int seconds, int orders, Stats[] stats)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService userThreads = Executors.newFixedThreadPool(users);
+        for (int u = 0; u < users; u++) {
+            userThreads.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    int endpoint = pickEndpoint();
+                    String orderId = String.valueOf(1_000_000 + ThreadLocalRandom.current().nextInt(orders));
+                    String path = ENDPOINTS[endpoint].replace("{id}", orderId);
+                    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                            .timeout(Duration.ofSeconds(30))
+                            .build();
+                    long start = System.nanoTime();
+                    boolean ok;
+                    try {
+                        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                        ok = response.statusCode() < 400;
+                    } catch (Exception e) {
+                        ok = false;
+                    }
+                    if (stats != null) {
+                        stats[endpoint].record(System.nanoTime() - start, ok);
+                    }
+                }
+            });
+        }
+        userThreads.shutdown();
+        userThreads.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+    }
+
+    private static int pickEndpoint() {
+        int total = Arrays.stream(WEIGHTS).sum();
+        int r = ThreadLocalRandom.current().nextInt(total);
+        for (int i = 0; i < WEIGHTS.length; i++) {
+            r -= WEIGHTS[i];
+            if (r < 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static void print(String name, Stats stats, int seconds) {
+        long[] sorted = stats.sortedLatencies();
+        System.out.printf("%-45s %9.1f %8.1f %8.1f %8.1f %8.1f %7d%n", name,
+                (double) sorted.length / seconds,
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1e6,
+                stats.errors.get());
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /** Latencies of one endpoint, kept raw so percentiles are exact. */
+    private static final class Stats {
+        private final List<Long> latencies = new ArrayList<>();
+        final AtomicLong errors = new AtomicLong();
+
+        synchronized void record(long nanos, boolean ok) {
+            latencies.add(nanos);
+            if (!ok) {
+                errors.incrementAndGet();
+            }
+        }
+
+        synchronized void merge(Stats other) {
+            latencies.addAll(other.latencies);
+            errors.addAndGet(other.errors.get());
+        }
+
+        synchronized long count() {
+            return latencies.size();
+        }
+
+        synchronized long[] sortedLatencies() {
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
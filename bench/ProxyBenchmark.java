@@ -0,0 +1,249 @@
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONObject;
+
+/**
+ * Micro-benchmarks for the CPU-bound parts of the proxy: OData XML to JSON, $batch
+ * building and parsing, page query parsing, the /full response serialization, request
+ * routing and request body parsing.
+ *
+ * A small warmup/measure harness instead of JMH: each case runs for a warmup period so the
+ * JIT settles, then for several timed rounds; results are consumed so they cannot be
+ * eliminated as dead code. Bytes allocated per call are taken from the thread's allocation
+ * counter. Usage: {@code java -cp out:json.jar ProxyBenchmark [filter]}.
+ */
+public class ProxyBenchmark {
+
+    private static final long WARMUP_MILLIS = Long.getLong("bench.warmupMillis", 2000L);
+    private static final long ROUND_MILLIS = Long.getLong("bench.roundMillis", 1000L);
+    private static final int ROUNDS = Integer.getInteger("bench.rounds", 5);
+
+    private static volatile Object sink;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // The request mix of the routing cases: mostly order details and items, as in the browser.
+    private static final String[][] REQUESTS = {
+            {"GET", "/api/sales-orders"},
+            {"GET", "/api/sales-order/1000123"},
+            {"GET", "/api/sales-order/1000123/items"},
+            {"GET", "/api/sales-order/1000123/full"},
+            {"PATCH", "/api/sales-order/1000123"},
+            {"DELETE", "/api/sales-order/1000123/item/20"},
+            {"GET", "/api/sales-orders/search"},
+            {"GET", "/api/unknown"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        String listFeed = sampleFeed(500, 3, 20);
+        String itemsFeed = sampleFeed(50, 8, 200);
+        String entry = sampleEntry();
+        String batchResponse = sampleBatchResponse(entry, itemsFeed);
+
+        List<Object[]> cases = new ArrayList<>();
+        cases.add(new Object[] {"transform.list500", (Callable<Object>) () ->
+                ODataJsonTransformer.toJson(listFeed, ODataJsonTransformer.ORDER_LIST_PROPERTIES, new ODataJsonTransformer.FeedInfo())});
+        cases.add(new Object[] {"transform.items50", (Callable<Object>) () ->
+                ODataJsonTransformer.toJson(itemsFeed, ODataJsonTransformer.ORDER_ITEM_PROPERTIES)});
+        cases.add(new Object[] {"transform.entry", (Callable<Object>) () ->
+                ODataJsonTransformer.toJson(entry, ODataJsonTransformer.ORDER_HEADER_PROPERTIES)});
+        cases.add(new Object[] {"batch.build", (Callable<Object>) () -> new ODataBatch()
+                .get("A_SalesOrder('1000001')")
+                .get("A_SalesOrder('1000001')/to_Item")
+                .beginChangeSet()
+                .delete("A_SalesOrderItem(SalesOrder='1000001',SalesOrderItem='10')", "W/\"v1\"")
+                .delete("A_SalesOrderItem(SalesOrder='1000001',SalesOrderItem='20')", "W/\"v1\"")
+                .toRequestBody()});
+        cases.add(new Object[] {"batch.parse", (Callable<Object>) () ->
+                ODataBatch.parseResponse("multipart/mixed; boundary=batchresponse_1", batchResponse)});
+        cases.add(new Object[] {"pageQuery.parse", (Callable<Object>) () ->
+                SalesOrderPageQuery.parse("size=50&filter=SoldToParty:17100001&sort=SalesOrder:desc&select=SalesOrder,SoldToParty",
+                        "HZIDANI").toODataQuery()});
+        cases.add(new Object[] {"full.serialize", (Callable<Object>) () -> new JSONObject()
+                .put("etag", "W/\"v1\"")
+                .put("header", new JSONObject(ODataJsonTransformer.toJson(entry, ODataJsonTransformer.ORDER_HEADER_PROPERTIES)))
+                .put("items", new JSONObject(ODataJsonTransformer.toJson(itemsFeed, ODataJsonTransformer.ORDER_ITEM_PROPERTIES))
+                        .getJSONArray("results"))
+                .toString()});
+
+        Router<String> router = new Router<>();
+        for (String[] route : new String[][] {
+                {"GET", "/api/sales-orders"}, {"POST", "/api/sales-orders"}, {"GET", "/api/sales-orders/page"},
+                {"GET", "/api/sales-orders/search"}, {"POST", "/api/sales-orders/bulk"}, {"GET", "/api/cache-stats"},
+                {"GET", "/api/writes"}, {"GET", "/api/writes/{id:digits}"}, {"GET", "/api/sales-order/{id:digits}"},
+                {"PATCH", "/api/sales-order/{id:digits}"}, {"MERGE", "/api/sales-order/{id:digits}"},
+                {"GET", "/api/sales-order/{id:digits}/items"}, {"DELETE", "/api/sales-order/{id:digits}/items"},
+                {"GET", "/api/sales-order/{id:digits}/full"}, {"DELETE", "/api/sales-order/{id:digits}/item/{id:digits}"}}) {
+            router.add(route[0], route[1], route[1]);
+        }
+        int[] next = {0};
+        cases.add(new Object[] {"route.regex", (Callable<Object>) () -> {
+            String[] request = REQUESTS[next[0]++ & 7];
+            return RegexDispatch.route(request[0], request[1]);
+        }});
+        cases.add(new Object[] {"route.trie", (Callable<Object>) () -> {
+            String[] request = REQUESTS[next[0]++ & 7];
+            return router.match(request[0], request[1]);
+        }});
+        byte[] updateBody = "{\"PurchaseOrderByCustomer\":\"PO-4711\",\"etag\":\"W/\\\"datetimeoffset'2024-01-01T00%3A00%3A00Z'\\\"\"}"
+                .getBytes(StandardCharsets.UTF_8);
+        Set<String> updateFields = Set.of("PurchaseOrderByCustomer", "etag");
+        cases.add(new Object[] {"body.jsonObject", (Callable<Object>) () -> {
+            JSONObject json = new JSONObject(new String(new ByteArrayInputStream(updateBody).readAllBytes(), StandardCharsets.UTF_8));
+            return json.getString("PurchaseOrderByCustomer") + json.getString("etag");
+        }});
+        cases.add(new Object[] {"body.streaming", (Callable<Object>) () ->
+                JsonBodyReader.readFields(new ByteArrayInputStream(updateBody), 16 * 1024, updateFields)});
+
+        System.out.printf("%-20s %14s %14s %12s%n", "benchmark", "ns/op", "ops/s", "B/op");
+        for (Object[] c : cases) {
+            String name = (String) c[0];
+            if (name.contains(filter)) {
+                @SuppressWarnings("unchecked")
+                Callable<Object> op = (Callable<Object>) c[1];
+                run(name, op);
+            }
+        }
+    }
+
+    static void run(String name, Callable<Object> op) throws Exception {
+        measure(op, WARMUP_MILLIS, null);
+        double best = Double.MAX_VALUE;
+        double total = 0;
+        double[] bytesPerOp = new double[1];
+        double totalBytes = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            double nsPerOp = measure(op, ROUND_MILLIS, bytesPerOp);
+            best = Math.min(best, nsPerOp);
+            total += nsPerOp;
+            totalBytes += bytesPerOp[0];
+        }
+        double mean = total / ROUNDS;
+        System.out.printf("%-20s %14.1f %14.0f %12.0f   (best %.1f ns/op)%n", name, mean, 1e9 / mean, totalBytes / ROUNDS, best);
+    }
+
+    /**
+     * Runs {@code op} repeatedly for about {@code millis} and returns the mean time per call;
+     * the mean bytes allocated per call go to {@code bytesPerOp[0]} if it is given.
+     */
+    private static double measure(Callable<Object> op, long millis, double[] bytesPerOp) throws Exception {
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long ops = 0;
+        long now;
+        do {
+            // Check the clock every 64 calls so nanoTime does not dominate cheap cases.
+            for (int i = 0; i < 64; i++) {
+                sink = op.call();
+            }
+            ops += 64;
+            now = System.nanoTime();
+        } while (now < deadline);
+        if (bytesPerOp != null) {
+            bytesPerOp[0] = (double) (THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore) / ops;
+        }
+        return (double) (now - start) / ops;
+    }
+
+    /**
+     * The dispatch ApiHandler used before the route table: method checks in a chain, regular
+     * expressions over the path, and a regex replace to build the metrics label. Kept here as
+     * the baseline of the routing cases.
+     */
+    static final class RegexDispatch {
+        private static final Pattern ORDER_ID_PATTERN = Pattern.compile("/api/sales-order/(\\d+)");
+        private static final Pattern ORDER_ITEM_PATTERN = Pattern.compile("/api/sales-order/(\\d+)/item/(\\d+)");
+        private static final Pattern NUMERIC_SEGMENT = Pattern.compile("/\\d+");
+        private static final Set<String> ROUTES = Set.of(
+                "/api/sales-orders", "/api/sales-orders/page", "/api/sales-orders/search", "/api/sales-orders/bulk", "/api/cache-stats",
+                "/api/sales-order/{id}", "/api/sales-order/{id}/items", "/api/sales-order/{id}/full",
+                "/api/sales-order/{id}/item/{id}", "/api/writes", "/api/writes/{id}");
+
+        static String route(String method, String path) {
+            Object target;
+            if ("GET".equalsIgnoreCase(method)) {
+                Matcher matcher = ORDER_ID_PATTERN.matcher(path);
+                if (path.equals("/api/sales-orders") || path.equals("/api/sales-orders/page")
+                        || path.equals("/api/sales-orders/search") || path.startsWith("/api/writes") || path.equals("/api/cache-stats")) {
+                    target = path;
+                } else if (matcher.find()) {
+                    target = matcher.group(1);
+                } else {
+                    target = "404";
+                }
+            } else if ("POST".equalsIgnoreCase(method)) {
+                target = path;
+            } else if ("PATCH".equalsIgnoreCase(method) || "MERGE".equalsIgnoreCase(method)) {
+                Matcher matcher = ORDER_ID_PATTERN.matcher(path);
+                target = matcher.find() ? matcher.group(1) : "404";
+            } else if ("DELETE".equalsIgnoreCase(method)) {
+                Matcher matcher = ORDER_ITEM_PATTERN.matcher(path);
+                Matcher orderMatcher = ORDER_ID_PATTERN.matcher(path);
+                if (matcher.find()) {
+                    target = new String[] {matcher.group(1), matcher.group(2)};
+                } else if (path.endsWith("/items") && orderMatcher.find()) {
+                    target = orderMatcher.group(1);
+                } else {
+                    target = "404";
+                }
+            } else {
+                target = "405";
+            }
+            sink = target;
+            String route = NUMERIC_SEGMENT.matcher(path).replaceAll("/{id}");
+            return ROUTES.contains(route) ? route : "unmatched";
+        }
+    }
+
+    static String sampleFeed(int entries, int properties, int valueLength) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<feed xmlns=\"http://www.w3.org/2005/Atom\""
+                + " xmlns:m=\"http://schemas.microsoft.com/ado/2007/08/dataservices/metadata\""
+                + " xmlns:d=\"http://schemas.microsoft.com/ado/2007/08/dataservices\">"
+                + "<m:count>" + entries + "</m:count>");
+        String value = "v".repeat(valueLength);
+        String[] names = {"SalesOrder", "SalesOrderType", "SalesOrganization", "SalesOrderItem", "Material",
+                "SalesOrderItemText", "RequestedQuantity", "NetAmount", "DistributionChannel", "SoldToParty"};
+        for (int e = 0; e < entries; e++) {
+            xml.append("<entry><id>A_SalesOrder('").append(1_000_000 + e).append("')</id>")
+                    .append("<content type=\"application/xml\"><m:properties>");
+            // Always include more properties than selected, as SAP does.
+            for (int p = 0; p < names.length; p++) {
+                String v = p < properties ? value : "unused";
+                xml.append("<d:").append(names[p]).append('>').append(v).append("</d:").append(names[p]).append('>');
+            }
+            xml.append("</m:properties></content></entry>");
+        }
+        return xml.append("</feed>").toString();
+    }
+
+    static String sampleEntry() {
+        String feed = sampleFeed(1, 10, 12);
+        String entry = feed.substring(feed.indexOf("<entry>"), feed.indexOf("</feed>"));
+        return "<?xml version=\"1.0\" encoding=\"utf-8\"?>" + entry.replace("<entry>", "<entry xmlns=\"http://www.w3.org/2005/Atom\""
+                + " xmlns:m=\"http://schemas.microsoft.com/ado/2007/08/dataservices/metadata\""
+                + " xmlns:d=\"http://schemas.microsoft.com/ado/2007/08/dataservices\">");
+    }
+
+    static String sampleBatchResponse(String entry, String itemsFeed) {
+        return "--batchresponse_1\r\n"
+                + "Content-Type: application/http\r\nContent-Transfer-Encoding: binary\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nContent-Type: application/atom+xml;type=entry\r\nETag: W/\"v1\"\r\n\r\n"
+                + entry + "\r\n"
+                + "--batchresponse_1\r\n"
+                + "Content-Type: application/http\r\nContent-Transfer-Encoding: binary\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nContent-Type: application/atom+xml;type=feed\r\n\r\n"
+                + itemsFeed + "\r\n"
+                + "--batchresponse_1--\r\n";
+    }
+}
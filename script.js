@@ -48,6 +48,14 @@ document.addEventListener('DOMContentLoaded', () => {
 	// =================================================================
 	let currentOrderId = null;
 	let currentETag = null;
+	let nextOrdersCursor = null;
+	const ORDER_PAGE_SIZE = 20;
+	let orderEvents = null;
+	let watchedOrders = '';
+	let refreshInFlight = null;
+	let refreshAgain = false;
+	// Item ID -> the item data its card was drawn from, to tell whether a pushed change touched it.
+	let renderedItems = new Map();
 
 	// =================================================================
 	// 3. INITIALIZATION
@@ -64,28 +72,13 @@ document.addEventListener('DOMContentLoaded', () => {
 		showElement(listLoader);
 		hideElement(orderListContainer);
 		try {
-			const response = await fetch('/api/sales-orders');
-			if (!response.ok) throw new Error(`Fetch error: ${response.statusText}`);
-			const xmlString = await response.text();
-			const xmlDoc = new DOMParser().parseFromString(xmlString, "application/xml");
-			const entries = xmlDoc.getElementsByTagName('entry');
+			const page = await fetchSalesOrderPage(null);
 			orderListContainer.innerHTML = '';
-			if (entries.length === 0) {
+			if (page.results.length === 0) {
 				orderListContainer.innerHTML = '<p>No sales orders found.</p>';
 				return;
 			}
-			for (const entry of entries) {
-				const properties = entry.getElementsByTagName('m:properties')[0];
-				const orderId = getTextContent(properties, 'd:SalesOrder');
-				const orderType = getTextContent(properties, 'd:SalesOrderType');
-				const org = getTextContent(properties, 'd:SalesOrganization');
-				const listItem = document.createElement('li');
-				listItem.className = 'order-item';
-				listItem.dataset.orderId = orderId;
-				listItem.innerHTML = `<div class="order-item-id">Order #${orderId}</div><div class="order-item-type">Type: ${orderType} | Org: ${org}</div>`;
-				listItem.addEventListener('click', handleOrderItemClick);
-				orderListContainer.appendChild(listItem);
-			}
+			appendSalesOrderPage(page);
 		} catch (error) {
 			console.error('Error loading sales orders:', error);
 			orderListContainer.innerHTML = `<p class="error-message">Could not load sales orders.</p>`;
@@ -95,6 +88,60 @@ document.addEventListener('DOMContentLoaded', () => {
 		}
 	}
 
+	// The backend pages the list server-side and returns compact JSON plus a cursor for the next page.
+	async function fetchSalesOrderPage(cursor) {
+		let url = `/api/sales-orders/page?size=${ORDER_PAGE_SIZE}`;
+		if (cursor) url += `&cursor=${encodeURIComponent(cursor)}`;
+		const response = await fetch(url);
+		if (!response.ok) throw new Error(`Fetch error: ${response.statusText}`);
+		return response.json();
+	}
+
+	function appendSalesOrderPage(page) {
+		for (const properties of page.results) {
+			orderListContainer.appendChild(createOrderListItem(properties));
+		}
+		nextOrdersCursor = page.next;
+		if (nextOrdersCursor) {
+			const loadMore = document.createElement('li');
+			loadMore.className = 'order-item load-more';
+			loadMore.innerHTML = '<div class="order-item-id">Load more orders...</div>';
+			loadMore.addEventListener('click', loadMoreSalesOrders);
+			orderListContainer.appendChild(loadMore);
+		}
+		watchOrderEvents();
+	}
+
+	function createOrderListItem(properties) {
+		const listItem = document.createElement('li');
+		listItem.className = 'order-item';
+		listItem.dataset.orderId = getField(properties, 'SalesOrder');
+		renderOrderListItem(listItem, properties);
+		listItem.addEventListener('click', handleOrderItemClick);
+		return listItem;
+	}
+
+	function renderOrderListItem(listItem, properties) {
+		const orderType = getField(properties, 'SalesOrderType');
+		const org = getField(properties, 'SalesOrganization');
+		listItem.innerHTML = `<div class="order-item-id">Order #${listItem.dataset.orderId}</div><div class="order-item-type">Type: ${orderType} | Org: ${org}</div>`;
+	}
+
+	async function loadMoreSalesOrders(event) {
+		const loadMore = event.currentTarget;
+		loadMore.removeEventListener('click', loadMoreSalesOrders);
+		loadMore.querySelector('.order-item-id').textContent = 'Loading...';
+		try {
+			const page = await fetchSalesOrderPage(nextOrdersCursor);
+			loadMore.remove();
+			appendSalesOrderPage(page);
+		} catch (error) {
+			console.error('Error loading more sales orders:', error);
+			loadMore.querySelector('.order-item-id').textContent = 'Could not load more orders. Click to retry.';
+			loadMore.addEventListener('click', loadMoreSalesOrders);
+		}
+	}
+
 	async function loadSalesOrderDetail(orderId) {
 		hideElement(welcomeMessage);
 		hideElement(detailContainer);
@@ -102,17 +149,16 @@ document.addEventListener('DOMContentLoaded', () => {
 		showElement(detailLoader);
 		currentETag = null;
 		try {
-			const response = await fetch(`/api/sales-order/${orderId}`);
+			// Header and items arrive together; the backend reads both from SAP in one $batch call.
+			const response = await fetch(`/api/sales-order/${orderId}/full?format=json`);
 			if (!response.ok) throw new Error(`Failed to fetch details: ${response.statusText}`);
+			const order = await response.json();
 
-			currentETag = response.headers.get('ETag');
+			currentETag = order.etag || response.headers.get('ETag');
 			console.log("Captured ETag on frontend:", currentETag);
 
-			const xmlString = await response.text();
-			const xmlDoc = new DOMParser().parseFromString(xmlString, "application/xml");
-			const properties = xmlDoc.getElementsByTagName('m:properties')[0];
-			renderOrderDetails(properties);
-			await loadSalesOrderItems(orderId);
+			renderOrderDetails(order.header);
+			showSalesOrderItems(order.items.results);
 		} catch (error) {
 			console.error(`Error loading details for order ${orderId}:`, error);
 			detailContainer.innerHTML = `<div class="error-message">Could not load details for Order #${orderId}.</div>`;
@@ -122,26 +168,96 @@ document.addEventListener('DOMContentLoaded', () => {
 		}
 	}
 
-	async function loadSalesOrderItems(orderId) {
-		showElement(itemsSection);
-		showElement(itemsLoader);
-		itemsGrid.innerHTML = '';
+	// =================================================================
+	// 4b. PUSHED CHANGES (SERVER-SENT EVENTS)
+	// =================================================================
+	// One stream for the listed orders and the open one; the backend polls SAP once for all
+	// browsers and also reports changes made through the portal. Reconnects when the set changes.
+	function watchOrderEvents() {
+		if (typeof EventSource === 'undefined') return;
+		const ids = new Set(Array.from(orderListContainer.querySelectorAll('.order-item[data-order-id]'), el => el.dataset.orderId));
+		if (currentOrderId) ids.add(currentOrderId);
+		const key = Array.from(ids).sort().join(',');
+		if (orderEvents && key === watchedOrders && orderEvents.readyState !== EventSource.CLOSED) return;
+		if (orderEvents) orderEvents.close();
+		watchedOrders = key;
+		orderEvents = new EventSource(`/events?orders=${encodeURIComponent(key)}`);
+		orderEvents.addEventListener('order-changed', handleOrderChanged);
+		orderEvents.addEventListener('order-created', handleOrderCreated);
+	}
+
+	const eventsConnected = () => orderEvents !== null && orderEvents.readyState === EventSource.OPEN;
+
+	function handleOrderChanged(event) {
+		const data = JSON.parse(event.data);
+		const listItem = orderListContainer.querySelector(`.order-item[data-order-id='${data.SalesOrder}']`);
+		// Changes polled from SAP carry the header fields; the portal's own only the order number.
+		if (listItem && data.SalesOrderType !== undefined) {
+			renderOrderListItem(listItem, data);
+		}
+		if (data.SalesOrder === currentOrderId) {
+			refreshCurrentOrder();
+		}
+	}
+
+	function handleOrderCreated(event) {
+		const data = JSON.parse(event.data);
+		if (orderListContainer.querySelector(`.order-item[data-order-id='${data.SalesOrder}']`)) return;
+		const emptyMessage = orderListContainer.querySelector('p');
+		if (emptyMessage) emptyMessage.remove();
+		orderListContainer.prepend(createOrderListItem(data));
+		watchOrderEvents();
+	}
+
+	// Reloads the open order without the loaders and only redraws what differs.
+	async function refreshCurrentOrder() {
+		if (refreshInFlight) {
+			refreshAgain = true;
+			return;
+		}
+		const orderId = currentOrderId;
+		refreshInFlight = fetch(`/api/sales-order/${orderId}/full?format=json`);
 		try {
-			const response = await fetch(`/api/sales-order/${orderId}/items`);
-			if (!response.ok) throw new Error(`Failed to fetch items: ${response.statusText}`);
-			const xmlString = await response.text();
-			const xmlDoc = new DOMParser().parseFromString(xmlString, "application/xml");
-			const entries = xmlDoc.getElementsByTagName('entry');
-			if (entries.length > 0) {
-				renderOrderItems(entries);
-			} else {
-				itemsGrid.innerHTML = '<p>No line items found for this order.</p>';
-			}
+			const response = await refreshInFlight;
+			if (!response.ok || orderId !== currentOrderId) return;
+			const order = await response.json();
+			const etag = order.etag || response.headers.get('ETag');
+			if (etag && etag === currentETag) return;
+			currentETag = etag;
+			renderOrderDetails(order.header);
+			updateSalesOrderItems(order.items.results);
 		} catch (error) {
-			console.error(`Error loading items for order ${orderId}:`, error);
-			itemsGrid.innerHTML = `<p class="error-message">Could not load items.</p>`;
+			console.error(`Error refreshing order ${orderId}:`, error);
 		} finally {
-			hideElement(itemsLoader);
+			refreshInFlight = null;
+			if (refreshAgain) {
+				refreshAgain = false;
+				refreshCurrentOrder();
+			}
+		}
+	}
+
+	// Removed items just lose their card; anything else (new or changed items) redraws the grid.
+	function updateSalesOrderItems(entries) {
+		const ids = new Set(entries.map(properties => getField(properties, 'SalesOrderItem')));
+		const unchanged = properties => renderedItems.get(getField(properties, 'SalesOrderItem')) === JSON.stringify(properties);
+		if (entries.length > 0 && entries.every(unchanged)) {
+			const cards = Array.from(itemsGrid.querySelectorAll('.delete-item-btn'));
+			cards.filter(button => !ids.has(button.dataset.itemId)).forEach(button => button.closest('.item-card').remove());
+		} else {
+			showSalesOrderItems(entries);
+		}
+	}
+
+	function showSalesOrderItems(entries) {
+		showElement(itemsSection);
+		hideElement(itemsLoader);
+		itemsGrid.innerHTML = '';
+		renderedItems = new Map(entries.map(properties => [getField(properties, 'SalesOrderItem'), JSON.stringify(properties)]));
+		if (entries.length > 0) {
+			renderOrderItems(entries);
+		} else {
+			itemsGrid.innerHTML = '<p>No line items found for this order.</p>';
 		}
 	}
 
@@ -149,19 +265,19 @@ document.addEventListener('DOMContentLoaded', () => {
 	// 5. UI RENDERING & EVENT HANDLING
 	// =================================================================
 	function renderOrderDetails(properties) {
-		const orderId = getTextContent(properties, 'd:SalesOrder');
-		const purchaseOrderValue = getTextContent(properties, 'd:PurchaseOrderByCustomer');
+		const orderId = getField(properties, 'SalesOrder');
+		const purchaseOrderValue = getField(properties, 'PurchaseOrderByCustomer');
 		const detailsHTML = `
             <h2 class="detail-header">Order Details: <span>#${orderId}</span></h2>
             <div class="detail-form">
-                ${createDetailRow('Order Type', getTextContent(properties, 'd:SalesOrderType'))}
-                ${createDetailRow('Sales Organization', getTextContent(properties, 'd:SalesOrganization'))}
-                ${createDetailRow('Distribution Channel', getTextContent(properties, 'd:DistributionChannel'))}
-                ${createDetailRow('Organization Division', getTextContent(properties, 'd:OrganizationDivision'))}
-                ${createDetailRow('Customer', getTextContent(properties, 'd:SoldToParty'))}
+                ${createDetailRow('Order Type', getField(properties, 'SalesOrderType'))}
+                ${createDetailRow('Sales Organization', getField(properties, 'SalesOrganization'))}
+                ${createDetailRow('Distribution Channel', getField(properties, 'DistributionChannel'))}
+                ${createDetailRow('Organization Division', getField(properties, 'OrganizationDivision'))}
+                ${createDetailRow('Customer', getField(properties, 'SoldToParty'))}
                 ${createEditableDetailRow('Customer Purchase Order', purchaseOrderValue)}
-                ${createDetailRow('Total Net Amount', `${getTextContent(properties, 'd:TotalNetAmount')} ${getTextContent(properties, 'd:TransactionCurrency')}`)}
-                ${createDetailRow('Created By', getTextContent(properties, 'd:CreatedByUser'))}
+                ${createDetailRow('Total Net Amount', `${getField(properties, 'TotalNetAmount')} ${getField(properties, 'TransactionCurrency')}`)}
+                ${createDetailRow('Created By', getField(properties, 'CreatedByUser'))}
             </div>`;
 		detailContainer.innerHTML = detailsHTML;
 		const editableField = detailContainer.querySelector('.editable');
@@ -173,27 +289,26 @@ document.addEventListener('DOMContentLoaded', () => {
 	// Locate this function
 	function renderOrderItems(entries) {
 		let cardsHTML = '';
-		for (const entry of entries) {
-			const properties = entry.getElementsByTagName('m:properties')[0];
+		for (const properties of entries) {
 			// NEW: Get the order and item IDs to use in the button
-			const orderId = getTextContent(properties, 'd:SalesOrder');
-			const itemId = getTextContent(properties, 'd:SalesOrderItem');
-			const netAmount = parseFloat(getTextContent(properties, 'd:NetAmount')).toFixed(2);
-			const quantity = parseFloat(getTextContent(properties, 'd:RequestedQuantity')).toFixed(2);
+			const orderId = getField(properties, 'SalesOrder');
+			const itemId = getField(properties, 'SalesOrderItem');
+			const netAmount = parseFloat(getField(properties, 'NetAmount')).toFixed(2);
+			const quantity = parseFloat(getField(properties, 'RequestedQuantity')).toFixed(2);
 			cardsHTML += `
             <div class="item-card">
                 <div class="item-card-header">
                     <span class="item-number">Item #${itemId}</span>
-                    <span class="item-material">${getTextContent(properties, 'd:Material')}</span>
+                    <span class="item-material">${getField(properties, 'Material')}</span>
                     <button class="delete-item-btn" 
                             data-order-id="${orderId}" 
                             data-item-id="${itemId}" 
                             title="Delete Item">&times;</button>
                 </div>
-                <div class="item-card-body"><p class="item-description">${getTextContent(properties, 'd:SalesOrderItemText') || 'No description available.'}</p></div>
+                <div class="item-card-body"><p class="item-description">${getField(properties, 'SalesOrderItemText') || 'No description available.'}</p></div>
                 <div class="item-card-footer">
-                    <span class="item-quantity">Qty: ${quantity} ${getTextContent(properties, 'd:RequestedQuantityUnit')}</span>
-                    <span class="item-value">${netAmount} ${getTextContent(properties, 'd:TransactionCurrency')}</span>
+                    <span class="item-quantity">Qty: ${quantity} ${getField(properties, 'RequestedQuantityUnit')}</span>
+                    <span class="item-value">${netAmount} ${getField(properties, 'TransactionCurrency')}</span>
                 </div>
             </div>`;
 		}
@@ -207,6 +322,7 @@ document.addEventListener('DOMContentLoaded', () => {
 		if (currentActive) currentActive.classList.remove('active');
 		selectedItem.classList.add('active');
 		loadSalesOrderDetail(currentOrderId);
+		watchOrderEvents();
 	}
 
 	// =================================================================
@@ -247,7 +363,12 @@ document.addEventListener('DOMContentLoaded', () => {
 				}),
 			});
 			if (!response.ok) throw new Error(`Server responded with status: ${response.status}`);
-			await loadSalesOrderDetail(currentOrderId);
+			if (eventsConnected()) {
+				// The change event that follows brings the new ETag and refreshes the order.
+				detailContainer.querySelector('.editable .value-text').textContent = newValue;
+			} else {
+				await loadSalesOrderDetail(currentOrderId);
+			}
 			closeEditModal();
 		} catch (error) {
 			console.error('Failed to update purchase order:', error);
@@ -306,7 +427,10 @@ document.addEventListener('DOMContentLoaded', () => {
 				throw new Error(errorMessage);
 			}
 			closeCreateModal();
-			await loadSalesOrderList();
+			// When connected, the new order arrives as an event and is added to the list.
+			if (!eventsConnected()) {
+				await loadSalesOrderList();
+			}
 		} catch (error) {
 			console.error('Failed to create sales order:', error);
 			createModalError.textContent = `Error: ${error.message}`;
@@ -346,10 +470,10 @@ document.addEventListener('DOMContentLoaded', () => {
 	// =================================================================
 	// 8. HELPER FUNCTIONS
 	// =================================================================
-	// CORRECTED TYPO: 'onst' is now 'const'
-	const getTextContent = (element, tagName) => {
-		const node = element.getElementsByTagName(tagName)[0];
-		return node ? node.textContent : 'N/A';
+	// Missing properties show as 'N/A', SAP null values as an empty string.
+	const getField = (properties, name) => {
+		const value = properties ? properties[name] : undefined;
+		return value === undefined ? 'N/A' : (value ?? '');
 	};
 	const createDetailRow = (label, value) => `<div class="detail-label">${label}</div><div class="detail-value">${value}</div>`;
 	const createEditableDetailRow = (label, value) => `